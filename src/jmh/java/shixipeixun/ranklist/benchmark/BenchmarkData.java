@@ -0,0 +1,58 @@
+package shixipeixun.ranklist.benchmark;
+
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基准测试用的榜单数据
+ */
+public final class BenchmarkData {
+
+    public static final String TODAY = LocalDate.now(ZoneId.of("Asia/Shanghai")).toString();
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * 生成一个榜单，字段都填上（和数据库查出来的一样）
+     */
+    public static List<MerchantRankInfo> board(String cityId, int type, int category, int size) {
+        List<MerchantRankInfo> board = new ArrayList<>(size);
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= size; i++) {
+            MerchantRankInfo info = new MerchantRankInfo();
+            info.setId((long) i * 31 + category);
+            info.setCityId(cityId);
+            info.setType(type);
+            info.setCategory(category);
+            info.setMerchantId(100_000L + i * 7L);
+            info.setSort(i);
+            info.setSaleNumMonth(1_000_000 / i);
+            info.setSaleNumDay(50_000 / i);
+            info.setDate(TODAY);
+            info.setIsDelete(0L);
+            info.setCreateTime(now - 86_400_000L);
+            info.setUpdateTime(now);
+            info.setRankCycle(1);
+            info.setOrderCnt(20_000 / i);
+            info.setOperator("etl");
+            board.add(info);
+        }
+        return board;
+    }
+
+    /**
+     * 生成一整天的数据（selectByDate的结果），按城市、类型、分类、名次排序
+     */
+    public static List<MerchantRankInfo> day(int boards, int entriesPerBoard) {
+        List<MerchantRankInfo> rows = new ArrayList<>(boards * entriesPerBoard);
+        for (int b = 0; b < boards; b++) {
+            rows.addAll(board(String.valueOf(1000 + b / 20), 1 + (b / 5) % 4, b % 5, entriesPerBoard));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,73 @@
+package shixipeixun.ranklist.benchmark;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import shixipeixun.ranklist.serializer.RankBoardRedisSerializer;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的假Redis，只实现读路径用到的GET/MGET/SET
+ * 值按真实的序列化方式存成字节，读取时反序列化，和走网络时的CPU开销一致（不含网络）
+ */
+public final class FakeRedis {
+
+    private final Map<String, byte[]> values = new ConcurrentHashMap<>();
+    private final RankBoardRedisSerializer serializer = new RankBoardRedisSerializer();
+
+    public void set(String key, Object value) {
+        values.put(key, serializer.serialize(value));
+    }
+
+    public RedisTemplate<String, Object> redisTemplate() {
+        ValueOperations<String, Object> ops = valueOperations(serializer);
+        return new RedisTemplate<>() {
+            @Override
+            public ValueOperations<String, Object> opsForValue() {
+                return ops;
+            }
+        };
+    }
+
+    public StringRedisTemplate stringRedisTemplate() {
+        ValueOperations<String, String> ops = valueOperations(RedisSerializer.string());
+        return new StringRedisTemplate() {
+            @Override
+            public ValueOperations<String, String> opsForValue() {
+                return ops;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> ValueOperations<String, V> valueOperations(RedisSerializer<?> valueSerializer) {
+        return (ValueOperations<String, V>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{ValueOperations.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "get" -> read(valueSerializer, (String) args[0]);
+                    case "multiGet" -> {
+                        List<Object> result = new ArrayList<>();
+                        for (Object key : (Collection<?>) args[0]) {
+                            result.add(read(valueSerializer, (String) key));
+                        }
+                        yield result;
+                    }
+                    case "set" -> {
+                        values.put((String) args[0], ((RedisSerializer<Object>) valueSerializer).serialize(args[1]));
+                        yield null;
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private Object read(RedisSerializer<?> valueSerializer, String key) {
+        byte[] bytes = values.get(key);
+        return bytes == null ? null : valueSerializer.deserialize(bytes);
+    }
+}
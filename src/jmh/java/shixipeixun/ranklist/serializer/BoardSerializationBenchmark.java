@@ -0,0 +1,57 @@
+package shixipeixun.ranklist.serializer;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import shixipeixun.ranklist.benchmark.BenchmarkData;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 榜单写入/读取Redis时的序列化
+ * json：原来的GenericJackson2JsonRedisSerializer
+ * binary：现在使用的RankBoardRedisSerializer（紧凑二进制格式）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoardSerializationBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int boardSize;
+
+    private final GenericJackson2JsonRedisSerializer jsonSerializer = new GenericJackson2JsonRedisSerializer();
+    private final RankBoardRedisSerializer binarySerializer = new RankBoardRedisSerializer();
+
+    private List<MerchantRankInfo> board;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        board = BenchmarkData.board("1001", 1, 2, boardSize);
+        json = jsonSerializer.serialize(board);
+        binary = binarySerializer.serialize(board);
+    }
+
+    @Benchmark
+    public byte[] jsonSerialize() {
+        return jsonSerializer.serialize(board);
+    }
+
+    @Benchmark
+    public Object jsonDeserialize() {
+        return jsonSerializer.deserialize(json);
+    }
+
+    @Benchmark
+    public byte[] binarySerialize() {
+        return binarySerializer.serialize(board);
+    }
+
+    @Benchmark
+    public Object binaryDeserialize() {
+        return binarySerializer.deserialize(binary);
+    }
+}
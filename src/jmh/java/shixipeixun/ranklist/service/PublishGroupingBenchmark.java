@@ -0,0 +1,38 @@
+package shixipeixun.ranklist.service;
+
+import org.openjdk.jmh.annotations.*;
+import shixipeixun.ranklist.benchmark.BenchmarkData;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发布新数据时按榜单分组（updateCacheWithNewData的第一步）
+ * 一整天的数据：boards个榜单，每个榜单boardSize条
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PublishGroupingBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int boardSize;
+
+    @Param({"200"})
+    private int boards;
+
+    private List<MerchantRankInfo> rows;
+
+    @Setup
+    public void setUp() {
+        // 总条数控制在20万以内，10000条的榜单只生成20个
+        rows = BenchmarkData.day(Math.min(boards, 200_000 / boardSize), boardSize);
+    }
+
+    @Benchmark
+    public Map<String, List<MerchantRankInfo>> groupByBoard() {
+        return RankService.groupByBoard(rows);
+    }
+}
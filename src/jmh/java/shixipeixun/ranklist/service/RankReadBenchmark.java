@@ -0,0 +1,78 @@
+package shixipeixun.ranklist.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import shixipeixun.ranklist.benchmark.BenchmarkData;
+import shixipeixun.ranklist.benchmark.FakeRedis;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getRank的缓存命中路径
+ * localHit：本地缓存命中（生成缓存key + 本地缓存查询）
+ * redisHit：本地缓存没有，从Redis读取并反序列化整个榜单
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RankReadBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int boardSize;
+
+    private RankService rankService;
+    private LocalRankCache localRankCache;
+    private RankQueryDTO dto;
+    private String cacheKey;
+
+    @Setup
+    public void setUp() {
+        FakeRedis redis = new FakeRedis();
+        localRankCache = new LocalRankCache();
+        rankService = new RankService();
+        ReflectionTestUtils.setField(rankService, "redisTemplate", redis.redisTemplate());
+        ReflectionTestUtils.setField(rankService, "stringRedisTemplate", redis.stringRedisTemplate());
+        ReflectionTestUtils.setField(rankService, "localRankCache", localRankCache);
+        ReflectionTestUtils.setField(rankService, "rankCacheChannel", new RankCacheChannel());
+        RankMetrics rankMetrics = new RankMetrics(new SimpleMeterRegistry());
+        RankFallback rankFallback = new RankFallback(4);
+        ReflectionTestUtils.setField(rankFallback, "rankMetrics", rankMetrics);
+        ReflectionTestUtils.setField(rankService, "rankMetrics", rankMetrics);
+        ReflectionTestUtils.setField(rankService, "hotBoardTracker", new HotBoardTracker());
+        ReflectionTestUtils.setField(rankService, "rankFallback", rankFallback);
+
+        dto = new RankQueryDTO();
+        dto.setCityId("1001");
+        dto.setType(1);
+        dto.setCategory(2);
+        cacheKey = rankService.boardCacheKey(dto);
+        List<MerchantRankInfo> board = BenchmarkData.board("1001", 1, 2, boardSize);
+        redis.set(cacheKey, board);
+        localRankCache.put(cacheKey, board);
+    }
+
+    @TearDown
+    public void tearDown() {
+        rankService.shutdown();
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return rankService.boardCacheKey(dto);
+    }
+
+    @Benchmark
+    public List<MerchantRankInfo> localHit() {
+        return rankService.getRank(dto);
+    }
+
+    @Benchmark
+    public List<MerchantRankInfo> redisHit() {
+        localRankCache.invalidate(cacheKey);
+        return rankService.getRank(dto);
+    }
+}
@@ -0,0 +1,47 @@
+package shixipeixun.ranklist.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import shixipeixun.ranklist.benchmark.BenchmarkData;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 接口层的响应编码
+ * encode：把榜单编码成JSON（大的再压缩gzip）并计算ETag，响应缓存没命中时的开销
+ * cachedResponse：响应缓存命中
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseEncodingBenchmark {
+
+    private static final String CACHE_KEY = "rank:1001:1:2:" + BenchmarkData.TODAY;
+
+    @Param({"100", "1000", "10000"})
+    private int boardSize;
+
+    private RankResponseCache responseCache;
+    private List<MerchantRankInfo> board;
+
+    @Setup
+    public void setUp() {
+        responseCache = new RankResponseCache();
+        ReflectionTestUtils.setField(responseCache, "objectMapper", new ObjectMapper());
+        board = BenchmarkData.board("1001", 1, 2, boardSize);
+        responseCache.getOrEncode(CACHE_KEY, null, null, () -> board);
+    }
+
+    @Benchmark
+    public EncodedBoard encode() {
+        return responseCache.encode(board, CACHE_KEY);
+    }
+
+    @Benchmark
+    public EncodedBoard cachedResponse() {
+        return responseCache.getOrEncode(CACHE_KEY, null, null, () -> board);
+    }
+}
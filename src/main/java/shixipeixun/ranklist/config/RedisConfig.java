@@ -2,10 +2,14 @@ package shixipeixun.ranklist.config;
 
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import shixipeixun.ranklist.serializer.RankBoardRedisSerializer;
 
 @Configuration
 public class RedisConfig {
@@ -21,8 +25,8 @@ public class RedisConfig {
         // 使用String序列化key
         template.setKeySerializer(new StringRedisSerializer());
 
-        // 使用JSON序列化value
-        template.setValueSerializer(new GenericJackson2JsonRedisSerializer());
+        // value中的榜单使用紧凑的二进制格式，其他值使用JSON
+        template.setValueSerializer(new RankBoardRedisSerializer());
 
         // hash的key也使用String序列化
         template.setHashKeySerializer(new StringRedisSerializer());
@@ -33,4 +37,18 @@ public class RedisConfig {
         template.afterPropertiesSet();
         return template;
     }
-}
\ No newline at end of file
+
+    /**
+     * 配置ReactiveRedisTemplate（异步查询排行榜用），序列化方式和RedisTemplate一致
+     */
+    @Bean
+    public ReactiveRedisTemplate<String, Object> reactiveRedisTemplate(ReactiveRedisConnectionFactory connectionFactory) {
+        RedisSerializationContext<String, Object> context = RedisSerializationContext
+                .<String, Object>newSerializationContext(new StringRedisSerializer())
+                .value(new RankBoardRedisSerializer())
+                .hashKey(new StringRedisSerializer())
+                .hashValue(new GenericJackson2JsonRedisSerializer())
+                .build();
+        return new ReactiveRedisTemplate<>(connectionFactory, context);
+    }
+}
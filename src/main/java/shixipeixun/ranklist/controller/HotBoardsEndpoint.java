@@ -0,0 +1,28 @@
+package shixipeixun.ranklist.controller;
+
+import jakarta.annotation.Resource;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.service.HotBoardTracker;
+
+import java.util.Map;
+
+/**
+ * 运维查看本实例的热点榜单：/actuator/hotboards
+ */
+@Component
+@Endpoint(id = "hotboards")
+public class HotBoardsEndpoint {
+
+    @Resource
+    private HotBoardTracker hotBoardTracker;
+
+    /**
+     * @return 榜单标识 cityId:type:category -> 最近的估计访问量（从大到小）
+     */
+    @ReadOperation
+    public Map<String, Integer> hotBoards() {
+        return hotBoardTracker.hotBoards();
+    }
+}
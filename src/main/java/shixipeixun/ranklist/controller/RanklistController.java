@@ -1,34 +1,226 @@
 package shixipeixun.ranklist.controller;
 
 import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import shixipeixun.ranklist.dto.MerchantPositionDTO;
 import shixipeixun.ranklist.dto.RankQueryDTO;
 import shixipeixun.ranklist.entity.MerchantRankInfo;
+import shixipeixun.ranklist.service.EncodedBoard;
+import shixipeixun.ranklist.service.RankBoardStream;
+import shixipeixun.ranklist.service.RankCycleAggregator;
+import shixipeixun.ranklist.service.RankMetrics;
+import shixipeixun.ranklist.service.RankResponseCache;
 import shixipeixun.ranklist.service.RankService;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @RestController
 public class RanklistController {
 
+    private static final byte[] EMPTY_LIST = "[]".getBytes(StandardCharsets.UTF_8);
+
+    // 每多少个请求抽样打印一次请求日志（全部请求的耗时看监控指标）
+    private static final int LOG_SAMPLE_RATE = 1000;
+
     @Resource
     private RankService rankService;
 
+    @Resource
+    private RankResponseCache rankResponseCache;
+
+    @Resource
+    private RankMetrics rankMetrics;
+
+    @Resource
+    private RankBoardStream rankBoardStream;
+
+    // 是否异步处理/rank（响应式读取Redis），关闭时在Tomcat线程上同步处理
+    @Value("${rank.async.enabled:true}")
+    private boolean asyncEnabled;
+
     /**
      * 获取排行榜接口
-     * @param dto 查询参数：cityId, type, category
+     * 返回编码好的JSON，支持gzip压缩，榜单没变化时返回304
+     * 开启异步（rank.async.enabled）时等待Redis期间不占用Tomcat线程
+     * @param dto 查询参数：cityId, type, category，可选周期rankCycle、日期date（最近90天）和分页参数offset, limit
      * @return 排行榜列表
      */
     @GetMapping("/rank")
-    public List<MerchantRankInfo> rank(RankQueryDTO dto) {
+    public CompletableFuture<ResponseEntity<byte[]>> rank(RankQueryDTO dto,
+                                                          @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                          @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        long start = System.nanoTime();
+
+        if (dto.getCityId() == null || dto.getType() == null || dto.getCategory() == null || !validCycle(dto)
+                || !RankService.validDate(dto.getDate())) {
+            log.debug("参数错误：cityId={}, type={}, category={}, rankCycle={}, date={}",
+                    dto.getCityId(), dto.getType(), dto.getCategory(), dto.getRankCycle(), dto.getDate());
+            record("rank", "invalid", start, dto);
+            // 返回空列表
+            return CompletableFuture.completedFuture(
+                    ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(EMPTY_LIST));
+        }
 
-        if (dto.getCityId() == null || dto.getType() == null || dto.getCategory() == null) {
-            System.out.println("参数错误：cityId=" + dto.getCityId() + ", type=" + dto.getType() + ", category=" + dto.getCategory());
-            return List.of(); // 返回空列表
+        // 今天没有这个榜单，不用查Redis和数据库
+        if (!rankService.mightExist(dto)) {
+            record("rank", "rejected", start, dto);
+            return CompletableFuture.completedFuture(
+                    ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(EMPTY_LIST));
         }
 
-        System.out.println("收到排行榜查询请求：cityId=" + dto.getCityId() + ", type=" + dto.getType() + ", category=" + dto.getCategory());
-        return rankService.getRank(dto);
+        boolean paged = dto.getOffset() != null || dto.getLimit() != null;
+        CompletableFuture<EncodedBoard> encoded;
+        if (asyncEnabled) {
+            // 版本号用响应式命令读，读不到时key为null（响应不缓存）
+            encoded = rankService.boardCacheKeyAsync(dto)
+                    .exceptionally(e -> null)
+                    .thenCompose(cacheKey -> rankResponseCache.getOrEncodeAsync(cacheKey, dto.getOffset(), dto.getLimit(),
+                            () -> paged ? rankService.getRankPageAsync(dto) : rankService.getRankAsync(dto)));
+        } else {
+            String cacheKey = rankService.boardCacheKey(dto);
+            encoded = CompletableFuture.completedFuture(rankResponseCache.getOrEncode(cacheKey, dto.getOffset(), dto.getLimit(),
+                    () -> paged ? rankService.getRankPage(dto) : rankService.getRank(dto)));
+        }
+        return encoded.thenApply(board -> toResponse(board, ifNoneMatch, acceptEncoding, start, dto));
+    }
+
+    private ResponseEntity<byte[]> toResponse(EncodedBoard board, String ifNoneMatch, String acceptEncoding,
+                                              long start, RankQueryDTO dto) {
+        boolean gzipped = board.gzip() != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        // 客户端的数据已经是最新的
+        if (board.matches(ifNoneMatch, gzipped)) {
+            record("rank", "not_modified", start, dto);
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(board.etag(gzipped))
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+        }
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(board.etag(gzipped))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        record("rank", board.json().length <= EMPTY_LIST.length ? "empty" : "ok", start, dto);
+        if (gzipped) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(board.gzip());
+        }
+        return response.body(board.json());
+    }
+
+    /**
+     * 订阅排行榜更新接口（Server-Sent Events），代替轮询/rank
+     * 连上时推送一次当前榜单，之后有新数据发布时推送新榜单（事件名board，id是ETag）
+     * 参数错误或者榜单不存在时返回204，浏览器的EventSource收到204不会再重连
+     * @param dto 查询参数：cityId, type, category，可选周期rankCycle（推送整个榜单，不支持分页和历史日期）
+     */
+    @GetMapping(value = "/rank/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> stream(RankQueryDTO dto,
+                                             @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        long start = System.nanoTime();
+        boolean today = dto.getDate() == null || dto.getDate().equals(RankService.getTodayDate());
+        if (!today || !queryable(dto)) {
+            record("stream", "invalid", start, dto);
+            return ResponseEntity.noContent().build();
+        }
+
+        SseEmitter emitter = rankBoardStream.subscribe(dto, lastEventId);
+        if (emitter == null) {
+            record("stream", "rejected", start, dto);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        record("stream", "ok", start, dto);
+        // 不让nginx缓冲推送内容
+        return ResponseEntity.ok().header("X-Accel-Buffering", "no").body(emitter);
+    }
+
+    /**
+     * 批量获取排行榜接口（首页一次展示多个榜单）
+     * @param dtos 多个查询参数，最多RankService.MAX_BATCH_SIZE个
+     * @return 和参数顺序一致的排行榜列表，参数错误的位置返回空列表
+     */
+    @PostMapping("/rank/batch")
+    public List<List<MerchantRankInfo>> batchRank(@RequestBody List<RankQueryDTO> dtos) {
+        long start = System.nanoTime();
+        if (dtos == null || dtos.isEmpty() || dtos.size() > RankService.MAX_BATCH_SIZE) {
+            log.debug("批量查询参数错误：{}个榜单", dtos == null ? 0 : dtos.size());
+            record("batch", "invalid", start, null);
+            return List.of();
+        }
+
+        // 参数完整并且榜单可能存在的才去查询（判断结果记下来，过滤器中途可能被重新加载）
+        boolean[] queryable = new boolean[dtos.size()];
+        List<RankQueryDTO> valid = new ArrayList<>();
+        for (int i = 0; i < dtos.size(); i++) {
+            queryable[i] = queryable(dtos.get(i));
+            if (queryable[i]) {
+                valid.add(dtos.get(i));
+            }
+        }
+        List<List<MerchantRankInfo>> boards = valid.isEmpty() ? List.of() : rankService.getRanks(valid);
+
+        List<List<MerchantRankInfo>> results = new ArrayList<>(dtos.size());
+        int next = 0;
+        for (int i = 0; i < dtos.size(); i++) {
+            if (queryable[i]) {
+                results.add(boards.get(next++));
+            } else {
+                results.add(List.of());
+            }
+        }
+        record("batch", "ok", start, null);
+        return results;
+    }
+
+    /**
+     * 查询商家名次接口
+     * @param merchantId 商家ID
+     * @param dto 可选：cityId, type, category都传时只查这个榜单
+     * @return 商家所在的榜单和名次
+     */
+    @GetMapping("/rank/merchant")
+    public List<MerchantPositionDTO> merchantPosition(@RequestParam Long merchantId, RankQueryDTO dto) {
+        boolean oneBoard = dto.getCityId() != null && dto.getType() != null && dto.getCategory() != null;
+        return rankService.getMerchantPositions(merchantId, oneBoard ? dto : null);
+    }
+
+    private boolean queryable(RankQueryDTO dto) {
+        return dto != null && dto.getCityId() != null && dto.getType() != null && dto.getCategory() != null
+                && validCycle(dto) && RankService.validDate(dto.getDate()) && rankService.mightExist(dto);
+    }
+
+    /**
+     * 周期参数不传（日榜）或者是日榜、周榜、月榜之一
+     */
+    private static boolean validCycle(RankQueryDTO dto) {
+        return dto.getRankCycle() == null || dto.getRankCycle() == RankCycleAggregator.CYCLE_DAY
+                || RankCycleAggregator.isCycle(dto.getRankCycle());
+    }
+
+    /**
+     * 记录接口耗时，并抽样打印请求日志
+     */
+    private void record(String endpoint, String outcome, long startNanos, RankQueryDTO dto) {
+        rankMetrics.recordRequest(endpoint, outcome, startNanos);
+        if (ThreadLocalRandom.current().nextInt(LOG_SAMPLE_RATE) == 0) {
+            log.info("抽样请求：{} {} {} 耗时{}ms", endpoint, outcome, dto == null ? "" : dto,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,15 @@
+package shixipeixun.ranklist.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MerchantPositionDTO {
+    private String cityId;
+    private Integer type;
+    private Integer category;
+    private Integer sort;        // 商家在这个榜单上的名次
+}
@@ -7,4 +7,14 @@ public class RankQueryDTO {
     private String cityId;
     private Integer type;
     private Integer category;
+
+    // 周期（可选）：1日榜（默认） 2周榜 3月榜
+    private Integer rankCycle;
+
+    // 日期（可选），格式yyyy-MM-dd，不传时是今天
+    private String date;
+
+    // 分页参数（可选），不传时返回整个榜单
+    private Integer offset;      // 从第几名开始（从0开始）
+    private Integer limit;       // 返回多少条，例如limit=10就是前10名
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package shixipeixun.ranklist.entity;
+
+import lombok.Data;
+
+@Data
+public class BoardWatermark {
+    private String cityId;       // 按天统计时为空
+    private Integer type;        // 按天统计时为空
+    private Integer category;    // 按天统计时为空
+    private Long maxUpdateTime;  // 最大更新时间
+    private Long rowCount;       // 数据条数
+
+    /**
+     * 水位值，更新时间或条数变了就说明数据变了
+     */
+    public String toMark() {
+        return maxUpdateTime + ":" + rowCount;
+    }
+}
@@ -11,7 +11,7 @@ public class MerchantRankInfo {
     private Long merchantId;
     private Integer sort;
     private Integer saleNumMonth;
-    private Integer saleNumDay;
+    private Integer saleNumDay;  // 日榜是当天销量，周榜、月榜是周期内的销量合计
     private String date;
     private Long isDelete;
     private Long createTime;
@@ -21,4 +21,7 @@ public class MerchantRankInfo {
     private Integer rankCycle;   // 周期类型 1日榜 2周榜 3月榜
     private Integer orderCnt;    // 订单量
     private String operator;     // 操作人
+
+    // 和前一天比名次的变化（发布时计算，不在数据库里）：正数是上升，负数是下降，0不变，null是前一天不在榜上
+    private Integer movement;
 }
\ No newline at end of file
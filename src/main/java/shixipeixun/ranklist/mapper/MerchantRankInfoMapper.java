@@ -1,7 +1,12 @@
 package shixipeixun.ranklist.mapper;
 
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.mapping.ResultSetType;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+import shixipeixun.ranklist.entity.BoardWatermark;
 import shixipeixun.ranklist.entity.MerchantRankInfo;
 
 import java.util.List;
@@ -23,6 +28,27 @@ public interface MerchantRankInfoMapper {
             "ORDER BY sort ASC")
     List<MerchantRankInfo> selectByDate(String date);
 
+    /**
+     * 按天流式读取排行榜数据（每天的全量刷新用），同一个榜单的数据连续返回
+     * 需要在连接串里开启useCursorFetch，数据库端才会按fetchSize分批返回
+     * @param cityIds 只读这些城市（分区读取时每个分区一组城市，走(date, city_id)索引），null表示全部
+     */
+    @Select("<script>" +
+            "SELECT id, city_id, type, category, merchant_id, sort, " +
+            "       sale_num_month, sale_num_day, date, is_delete, " +
+            "       create_time, update_time, " +
+            "       rank_cycle, order_cnt, operator " +
+            "FROM merchant_rank_info " +
+            "WHERE date = #{date} AND is_delete = 0 " +
+            "      <if test='cityIds != null'>" +
+            "        AND city_id IN " +
+            "        <foreach collection='cityIds' item='cityId' open='(' separator=',' close=')'>#{cityId}</foreach>" +
+            "      </if> " +
+            "ORDER BY city_id, type, category, sort ASC" +
+            "</script>")
+    @Options(fetchSize = 1000, resultSetType = ResultSetType.FORWARD_ONLY)
+    Cursor<MerchantRankInfo> streamByDate(String date, List<String> cityIds);
+
     /**
      * 根据条件查询排行榜数据
      */
@@ -36,4 +62,41 @@ public interface MerchantRankInfoMapper {
             "      AND is_delete = 0 " +
             "ORDER BY sort ASC")
     List<MerchantRankInfo> selectByConditions(String date, String cityId, Integer type, Integer category);
-}
\ No newline at end of file
+
+    /**
+     * 一次查询多个榜单的数据（批量接口缓存未命中时使用）
+     * @param boards 要查询的榜单，只用到cityId, type, category
+     */
+    @Select("<script>" +
+            "SELECT id, city_id, type, category, merchant_id, sort, " +
+            "       sale_num_month, sale_num_day, date, is_delete, " +
+            "       create_time, update_time, " +
+            "       rank_cycle, order_cnt, operator " +
+            "FROM merchant_rank_info " +
+            "WHERE date = #{date} AND is_delete = 0 " +
+            "      AND (city_id, type, category) IN " +
+            "      <foreach collection='boards' item='b' open='(' separator=',' close=')'>" +
+            "        (#{b.cityId}, #{b.type}, #{b.category})" +
+            "      </foreach> " +
+            "ORDER BY sort ASC" +
+            "</script>")
+    List<MerchantRankInfo> selectByBoards(String date, List<RankQueryDTO> boards);
+
+    /**
+     * 查询某天数据的水位（最大更新时间和条数），用来判断数据有没有变化
+     */
+    @Select("SELECT MAX(update_time) AS max_update_time, COUNT(*) AS row_count " +
+            "FROM merchant_rank_info " +
+            "WHERE date = #{date} AND is_delete = 0")
+    BoardWatermark selectWatermarkByDate(String date);
+
+    /**
+     * 按榜单查询某天数据的水位
+     */
+    @Select("SELECT city_id, type, category, " +
+            "       MAX(update_time) AS max_update_time, COUNT(*) AS row_count " +
+            "FROM merchant_rank_info " +
+            "WHERE date = #{date} AND is_delete = 0 " +
+            "GROUP BY city_id, type, category")
+    List<BoardWatermark> selectBoardWatermarksByDate(String date);
+}
@@ -0,0 +1,332 @@
+package shixipeixun.ranklist.serializer;
+
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 排行榜的紧凑二进制格式
+ *
+ * 格式：MAGIC(1字节) + 版本(1字节) + 类型(1字节) + 内容
+ * 榜单内容：条数 + 字符串字典（cityId、date） + 每条记录
+ * 单条记录内容（有序集合的成员）：字符串字典 + 一条记录
+ * 每条记录：字段存在标记 + 存在的字段（整数用zigzag变长编码，字符串存字典下标）
+ *
+ * 记录后面是可选的扩展：类型(1字节) + 长度 + 内容，读取方跳过不认识的扩展
+ * 名次变化（movement）放在扩展里：个数 + 每个(记录下标, 名次变化)，没有名次变化时不写
+ * 只认识记录的旧版本读到记录就结束，不会因为多了扩展而读取失败，所以版本号不用变
+ *
+ * 只保存接口返回需要的字段，operator、createTime、isDelete不保存
+ */
+public final class RankBoardCodec {
+
+    // JSON不会以这个字节开头，用来区分新旧格式
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte SCHEMA_VERSION = 1;
+
+    private static final byte TYPE_BOARD = 1;
+    private static final byte TYPE_ENTRY = 2;
+
+    // 扩展类型
+    private static final byte EXT_MOVEMENT = 1;
+
+    // 字段存在标记
+    private static final int F_ID = 1;
+    private static final int F_CITY_ID = 1 << 1;
+    private static final int F_TYPE = 1 << 2;
+    private static final int F_CATEGORY = 1 << 3;
+    private static final int F_MERCHANT_ID = 1 << 4;
+    private static final int F_SORT = 1 << 5;
+    private static final int F_SALE_NUM_MONTH = 1 << 6;
+    private static final int F_SALE_NUM_DAY = 1 << 7;
+    private static final int F_DATE = 1 << 8;
+    private static final int F_UPDATE_TIME = 1 << 9;
+    private static final int F_RANK_CYCLE = 1 << 10;
+    private static final int F_ORDER_CNT = 1 << 11;
+
+    private RankBoardCodec() {
+    }
+
+    /**
+     * 是否是二进制格式
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    /**
+     * 编码榜单
+     */
+    public static byte[] encodeBoard(List<MerchantRankInfo> board) {
+        Output out = new Output(board.size() * 24 + 16);
+        out.write(MAGIC);
+        out.write(SCHEMA_VERSION);
+        out.write(TYPE_BOARD);
+        out.writeVarint(board.size());
+
+        // 字符串字典，同一个榜单的cityId和date基本都一样
+        Map<String, Integer> dictionary = writeDictionary(out, board);
+        for (MerchantRankInfo info : board) {
+            writeEntry(out, info, dictionary);
+        }
+        writeMovements(out, board);
+        return out.toByteArray();
+    }
+
+    /**
+     * 编码单条记录
+     */
+    public static byte[] encodeEntry(MerchantRankInfo info) {
+        Output out = new Output(48);
+        out.write(MAGIC);
+        out.write(SCHEMA_VERSION);
+        out.write(TYPE_ENTRY);
+        Map<String, Integer> dictionary = writeDictionary(out, List.of(info));
+        writeEntry(out, info, dictionary);
+        writeMovements(out, List.of(info));
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码，返回榜单（List）或单条记录
+     */
+    public static Object decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        checkHeader(in);
+        byte type = in.get(in.position());
+        if (type == TYPE_ENTRY) {
+            in.get();
+            MerchantRankInfo info = readEntry(in, readDictionary(in));
+            readExtensions(in, List.of(info));
+            return info;
+        }
+        in.position(0);
+        return decodeBoard(in);
+    }
+
+    /**
+     * 解码榜单
+     */
+    public static List<MerchantRankInfo> decodeBoard(byte[] bytes) {
+        return decodeBoard(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 解码榜单（从当前position开始读到limit，后面不能有别的数据）
+     */
+    public static List<MerchantRankInfo> decodeBoard(ByteBuffer in) {
+        checkHeader(in);
+        byte type = in.get();
+        if (type != TYPE_BOARD) {
+            throw new IllegalArgumentException("不是榜单数据，类型：" + type);
+        }
+
+        int size = readVarint(in);
+        String[] strings = readDictionary(in);
+
+        List<MerchantRankInfo> board = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            board.add(readEntry(in, strings));
+        }
+        readExtensions(in, board);
+        return board;
+    }
+
+    private static void checkHeader(ByteBuffer in) {
+        if (in.get() != MAGIC) {
+            throw new IllegalArgumentException("不是二进制榜单格式");
+        }
+        byte version = in.get();
+        if (version != SCHEMA_VERSION) {
+            throw new IllegalArgumentException("不支持的榜单格式版本：" + version);
+        }
+    }
+
+    private static Map<String, Integer> writeDictionary(Output out, List<MerchantRankInfo> board) {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (MerchantRankInfo info : board) {
+            addToDictionary(info.getCityId(), dictionary, strings);
+            addToDictionary(info.getDate(), dictionary, strings);
+        }
+        out.writeVarint(strings.size());
+        for (String s : strings) {
+            out.writeString(s);
+        }
+        return dictionary;
+    }
+
+    private static String[] readDictionary(ByteBuffer in) {
+        int dictionarySize = readVarint(in);
+        String[] strings = new String[dictionarySize];
+        for (int i = 0; i < dictionarySize; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    private static void addToDictionary(String value, Map<String, Integer> dictionary, List<String> strings) {
+        if (value != null && !dictionary.containsKey(value)) {
+            dictionary.put(value, strings.size());
+            strings.add(value);
+        }
+    }
+
+    private static void writeEntry(Output out, MerchantRankInfo info, Map<String, Integer> dictionary) {
+        int flags = 0;
+        if (info.getId() != null) flags |= F_ID;
+        if (info.getCityId() != null) flags |= F_CITY_ID;
+        if (info.getType() != null) flags |= F_TYPE;
+        if (info.getCategory() != null) flags |= F_CATEGORY;
+        if (info.getMerchantId() != null) flags |= F_MERCHANT_ID;
+        if (info.getSort() != null) flags |= F_SORT;
+        if (info.getSaleNumMonth() != null) flags |= F_SALE_NUM_MONTH;
+        if (info.getSaleNumDay() != null) flags |= F_SALE_NUM_DAY;
+        if (info.getDate() != null) flags |= F_DATE;
+        if (info.getUpdateTime() != null) flags |= F_UPDATE_TIME;
+        if (info.getRankCycle() != null) flags |= F_RANK_CYCLE;
+        if (info.getOrderCnt() != null) flags |= F_ORDER_CNT;
+
+        out.writeVarint(flags);
+        if ((flags & F_ID) != 0) out.writeZigzag(info.getId());
+        if ((flags & F_CITY_ID) != 0) out.writeVarint(dictionary.get(info.getCityId()));
+        if ((flags & F_TYPE) != 0) out.writeZigzag(info.getType());
+        if ((flags & F_CATEGORY) != 0) out.writeZigzag(info.getCategory());
+        if ((flags & F_MERCHANT_ID) != 0) out.writeZigzag(info.getMerchantId());
+        if ((flags & F_SORT) != 0) out.writeZigzag(info.getSort());
+        if ((flags & F_SALE_NUM_MONTH) != 0) out.writeZigzag(info.getSaleNumMonth());
+        if ((flags & F_SALE_NUM_DAY) != 0) out.writeZigzag(info.getSaleNumDay());
+        if ((flags & F_DATE) != 0) out.writeVarint(dictionary.get(info.getDate()));
+        if ((flags & F_UPDATE_TIME) != 0) out.writeZigzag(info.getUpdateTime());
+        if ((flags & F_RANK_CYCLE) != 0) out.writeZigzag(info.getRankCycle());
+        if ((flags & F_ORDER_CNT) != 0) out.writeZigzag(info.getOrderCnt());
+    }
+
+    /**
+     * 名次变化扩展，没有名次变化时不写
+     */
+    private static void writeMovements(Output out, List<MerchantRankInfo> board) {
+        Output content = new Output(16);
+        int count = 0;
+        for (int i = 0; i < board.size(); i++) {
+            Integer movement = board.get(i).getMovement();
+            if (movement != null) {
+                content.writeVarint(i);
+                content.writeZigzag(movement);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        Output extension = new Output(content.size() + 5);
+        extension.writeVarint(count);
+        extension.write(content.toByteArray(), 0, content.size());
+
+        out.write(EXT_MOVEMENT);
+        out.writeVarint(extension.size());
+        out.write(extension.toByteArray(), 0, extension.size());
+    }
+
+    /**
+     * 读取记录后面的扩展，不认识的扩展按长度跳过
+     */
+    private static void readExtensions(ByteBuffer in, List<MerchantRankInfo> board) {
+        while (in.hasRemaining()) {
+            byte type = in.get();
+            int length = readVarint(in);
+            int end = in.position() + length;
+            if (type == EXT_MOVEMENT) {
+                int count = readVarint(in);
+                for (int i = 0; i < count; i++) {
+                    board.get(readVarint(in)).setMovement((int) readZigzag(in));
+                }
+            }
+            in.position(end);
+        }
+    }
+
+    private static MerchantRankInfo readEntry(ByteBuffer in, String[] strings) {
+        MerchantRankInfo info = new MerchantRankInfo();
+        int flags = readVarint(in);
+        if ((flags & F_ID) != 0) info.setId(readZigzag(in));
+        if ((flags & F_CITY_ID) != 0) info.setCityId(strings[readVarint(in)]);
+        if ((flags & F_TYPE) != 0) info.setType((int) readZigzag(in));
+        if ((flags & F_CATEGORY) != 0) info.setCategory((int) readZigzag(in));
+        if ((flags & F_MERCHANT_ID) != 0) info.setMerchantId(readZigzag(in));
+        if ((flags & F_SORT) != 0) info.setSort((int) readZigzag(in));
+        if ((flags & F_SALE_NUM_MONTH) != 0) info.setSaleNumMonth((int) readZigzag(in));
+        if ((flags & F_SALE_NUM_DAY) != 0) info.setSaleNumDay((int) readZigzag(in));
+        if ((flags & F_DATE) != 0) info.setDate(strings[readVarint(in)]);
+        if ((flags & F_UPDATE_TIME) != 0) info.setUpdateTime(readZigzag(in));
+        if ((flags & F_RANK_CYCLE) != 0) info.setRankCycle((int) readZigzag(in));
+        if ((flags & F_ORDER_CNT) != 0) info.setOrderCnt((int) readZigzag(in));
+        return info;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarLong(in);
+    }
+
+    private static long readZigzag(ByteBuffer in) {
+        long n = readVarLong(in);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+            if (shift >= 64) {
+                throw new IllegalArgumentException("变长整数格式错误");
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 可以直接拿到内部数组的输出流
+     */
+    private static final class Output extends ByteArrayOutputStream {
+
+        private Output(int size) {
+            super(size);
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeZigzag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package shixipeixun.ranklist.serializer;
+
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.List;
+
+/**
+ * 排行榜缓存的序列化
+ * 1. 榜单（List<MerchantRankInfo>）和单条记录（有序集合成员）用紧凑的二进制格式，见RankBoardCodec
+ * 2. 其他值（NULL、WAITING等标记）还是用JSON
+ * 3. 读取时按第一个字节区分格式，升级期间旧的JSON榜单也能读
+ */
+public class RankBoardRedisSerializer implements RedisSerializer<Object> {
+
+    private final GenericJackson2JsonRedisSerializer jsonSerializer = new GenericJackson2JsonRedisSerializer();
+
+    @Override
+    public byte[] serialize(Object value) throws SerializationException {
+        if (isBoard(value)) {
+            return RankBoardCodec.encodeBoard((List<MerchantRankInfo>) value);
+        }
+        if (value instanceof MerchantRankInfo info) {
+            return RankBoardCodec.encodeEntry(info);
+        }
+        return jsonSerializer.serialize(value);
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        if (RankBoardCodec.isBinary(bytes)) {
+            try {
+                return RankBoardCodec.decode(bytes);
+            } catch (RuntimeException e) {
+                throw new SerializationException("榜单二进制数据解析失败", e);
+            }
+        }
+        return jsonSerializer.deserialize(bytes);
+    }
+
+    /**
+     * 非空且都是MerchantRankInfo的列表才按榜单处理
+     */
+    private static boolean isBoard(Object value) {
+        if (!(value instanceof List<?> list) || list.isEmpty()) {
+            return false;
+        }
+        for (Object item : list) {
+            if (!(item instanceof MerchantRankInfo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+package shixipeixun.ranklist.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * 榜单标识的布隆过滤器：判断某个榜单一定不存在，或者可能存在
+ * 建好之后只读，可以多线程共享；可以转成字节数组存到Redis，各实例共用同一份
+ *
+ * 格式：哈希函数个数(4字节) + 位数组(long数组)
+ */
+public class BoardBloomFilter {
+
+    private final int hashCount;
+    private final long[] bits;
+    private final long bitSize;
+
+    private BoardBloomFilter(int hashCount, long[] bits) {
+        this.hashCount = hashCount;
+        this.bits = bits;
+        this.bitSize = (long) bits.length * Long.SIZE;
+    }
+
+    /**
+     * 用一组榜单标识建过滤器
+     * @param boardIds 榜单标识 cityId:type:category
+     * @param falsePositiveRate 误判率（不存在的榜单被判断为可能存在的概率）
+     */
+    public static BoardBloomFilter of(Collection<String> boardIds, double falsePositiveRate) {
+        int expected = Math.max(1, boardIds.size());
+        // m = -n·ln(p) / (ln2)²，k = m/n·ln2
+        long bitCount = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, (bitCount + Long.SIZE - 1) / Long.SIZE);
+        int hashCount = Math.max(1, (int) Math.round((double) words * Long.SIZE / expected * Math.log(2)));
+
+        BoardBloomFilter filter = new BoardBloomFilter(hashCount, new long[words]);
+        for (String boardId : boardIds) {
+            filter.put(boardId);
+        }
+        return filter;
+    }
+
+    /**
+     * 从字节数组恢复（toBytes的结果）
+     */
+    public static BoardBloomFilter fromBytes(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int hashCount = in.getInt();
+        long[] bits = new long[in.remaining() / Long.BYTES];
+        in.asLongBuffer().get(bits);
+        if (hashCount <= 0 || bits.length == 0) {
+            throw new IllegalArgumentException("布隆过滤器数据格式错误");
+        }
+        return new BoardBloomFilter(hashCount, bits);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer out = ByteBuffer.allocate(Integer.BYTES + bits.length * Long.BYTES);
+        out.putInt(hashCount);
+        out.asLongBuffer().put(bits);
+        return out.array();
+    }
+
+    /**
+     * 返回false表示一定不存在，true表示可能存在
+     */
+    public boolean mightContain(String boardId) {
+        long hash = hash64(boardId);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = Integer.toUnsignedLong(h1 + i * h2) % bitSize;
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void put(String boardId) {
+        long hash = hash64(boardId);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = Integer.toUnsignedLong(h1 + i * h2) % bitSize;
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    /**
+     * 64位FNV-1a再打散一次，拆成两个32位哈希做双重哈希
+     */
+    private static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,68 @@
+package shixipeixun.ranklist.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 简单的熔断器
+ * 1. 连续失败达到阈值后熔断（打开），一段时间内不再调用
+ * 2. 熔断时间过去后放一个请求试探（半开），成功就恢复（关闭），失败就继续熔断
+ */
+public class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // 熔断到什么时候（0表示没有熔断）
+    private final AtomicLong openUntil = new AtomicLong();
+    // 半开状态下是否已经有试探请求
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+
+    /**
+     * @param failureThreshold 连续失败多少次后熔断
+     * @param openMillis 熔断多久后再试探
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 是否可以调用，熔断期间返回false；熔断时间过了只有一个调用方能拿到试探机会
+     */
+    public boolean allowRequest() {
+        long until = openUntil.get();
+        if (until == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < until) {
+            return false;
+        }
+        return probing.compareAndSet(false, true);
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        openUntil.set(0);
+        probing.set(false);
+    }
+
+    /**
+     * 记录一次失败
+     * @return 是否因为这次失败而熔断
+     */
+    public boolean recordFailure() {
+        if (probing.get() || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            long previous = openUntil.getAndSet(System.currentTimeMillis() + openMillis);
+            probing.set(false);
+            return previous == 0;
+        }
+        return false;
+    }
+
+    public boolean isOpen() {
+        return openUntil.get() != 0;
+    }
+}
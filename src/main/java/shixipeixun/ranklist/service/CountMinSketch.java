@@ -0,0 +1,135 @@
+package shixipeixun.ranklist.service;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Count-Min Sketch：用固定大小的计数器估算每个key出现的次数（只会多估，不会少估）
+ * 线程安全，计数只用原子自增，没有锁
+ */
+public class CountMinSketch {
+
+    // MurmurHash3 x64 128位的常量
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final int depth;
+    private final int width;
+    private final AtomicIntegerArray counters;
+
+    /**
+     * @param depth 哈希函数个数（行数），越多越准
+     * @param width 每行计数器个数，必须是2的幂
+     */
+    public CountMinSketch(int depth, int width) {
+        if (Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("width必须是2的幂：" + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.counters = new AtomicIntegerArray(depth * width);
+    }
+
+    /**
+     * 计数加一，返回加完之后的估计次数
+     */
+    public int add(String key) {
+        long[] hash = hash(key);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(row, hash)));
+        }
+        return estimate;
+    }
+
+    /**
+     * 估计次数
+     */
+    public int estimate(String key) {
+        long[] hash = hash(key);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(index(row, hash)));
+        }
+        return estimate;
+    }
+
+    /**
+     * 所有计数减半（定时衰减，让估计值反映最近的访问量）
+     */
+    public void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.updateAndGet(i, count -> count >>> 1);
+        }
+    }
+
+    /**
+     * 第row行的位置：h1 + row * h2（两个独立的64位哈希组合出每行的哈希）
+     * h2强制成奇数，每一行的步长都不为0，一行冲突的key在其他行大概率不冲突
+     */
+    private int index(int row, long[] hash) {
+        long h = hash[0] + row * (hash[1] | 1);
+        return row * width + ((int) (h ^ (h >>> 32)) & (width - 1));
+    }
+
+    /**
+     * 对key的字符做MurmurHash3 x64 128位哈希，得到两个64位哈希（每个字符当成16位，不用转成字节数组）
+     */
+    private static long[] hash(String key) {
+        int length = key.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        // 每次处理8个字符（128位）
+        for (; i + 8 <= length; i += 8) {
+            h1 ^= mixK1(pack(key, i, 4));
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(pack(key, i + 4, 4));
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        // 剩下不足8个字符
+        int rest = length - i;
+        if (rest > 4) {
+            h2 ^= mixK2(pack(key, i + 4, rest - 4));
+        }
+        if (rest > 0) {
+            h1 ^= mixK1(pack(key, i, Math.min(rest, 4)));
+        }
+
+        h1 ^= length * 2L;
+        h2 ^= length * 2L;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    private static long pack(String key, int from, int count) {
+        long k = 0;
+        for (int j = 0; j < count; j++) {
+            k |= (long) key.charAt(from + j) << (16 * j);
+        }
+        return k;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,35 @@
+package shixipeixun.ranklist.service;
+
+/**
+ * 已经编码好的排行榜响应
+ * @param json JSON响应内容
+ * @param gzip gzip压缩后的内容，内容太小不压缩时为null
+ * @param etag 原始JSON内容的强ETag，由榜单数据版本和内容计算
+ */
+public record EncodedBoard(byte[] json, byte[] gzip, String etag) {
+
+    /**
+     * 返回的内容对应的ETag：gzip和原始内容是两种不同的表示，强ETag不能一样，gzip的加上-gz
+     */
+    public String etag(boolean gzipped) {
+        return gzipped ? etag.substring(0, etag.length() - 1) + "-gz\"" : etag;
+    }
+
+    /**
+     * 客户端的If-None-Match是否和要返回的内容一致
+     * @param gzipped 是否返回gzip内容
+     */
+    public boolean matches(String ifNoneMatch, boolean gzipped) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String current = etag(gzipped);
+        for (String tag : ifNoneMatch.split(",")) {
+            String trimmed = tag.trim();
+            if (trimmed.equals("*") || trimmed.equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,88 @@
+package shixipeixun.ranklist.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 热点榜单识别
+ * 1. 每次查询在Count-Min Sketch里计数，每10秒计数减半，估计值反映最近的访问量
+ * 2. 估计值超过阈值的榜单进入热点列表（最多TOP_K个），读取时分散到多个副本key上
+ */
+@Slf4j
+@Component
+public class HotBoardTracker {
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+    private static final int TOP_K = 32; // 热点列表最多的榜单个数
+    private static final int HOT_THRESHOLD = 500; // 衰减后的估计访问量超过这个值算热点（约每秒50次以上）
+
+    private final CountMinSketch sketch = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+
+    // 热点榜单 -> 最近的估计访问量
+    private final ConcurrentHashMap<String, Integer> hotBoards = new ConcurrentHashMap<>();
+
+    /**
+     * 记录一次查询
+     * @param boardId 榜单标识 cityId:type:category
+     */
+    public void record(String boardId) {
+        int estimate = sketch.add(boardId);
+        if (estimate < HOT_THRESHOLD) {
+            return;
+        }
+        if (hotBoards.replace(boardId, estimate) == null) {
+            addHotBoard(boardId, estimate);
+        }
+    }
+
+    public boolean isHot(String boardId) {
+        return hotBoards.containsKey(boardId);
+    }
+
+    /**
+     * 当前的热点榜单，按估计访问量从大到小
+     */
+    public Map<String, Integer> hotBoards() {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(hotBoards.entrySet());
+        entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * 每10秒衰减一次，访问量降下来的榜单移出热点列表
+     */
+    @Scheduled(fixedRate = 10000)
+    public void decay() {
+        sketch.halve();
+        hotBoards.replaceAll((boardId, estimate) -> sketch.estimate(boardId));
+        hotBoards.values().removeIf(estimate -> estimate < HOT_THRESHOLD / 2);
+    }
+
+    private synchronized void addHotBoard(String boardId, int estimate) {
+        if (hotBoards.size() >= TOP_K) {
+            // 满了就替换掉访问量最小的
+            Map.Entry<String, Integer> coldest = hotBoards.entrySet().stream()
+                    .min(Comparator.comparingInt(Map.Entry::getValue)).orElse(null);
+            if (coldest == null || coldest.getValue() >= estimate) {
+                return;
+            }
+            hotBoards.remove(coldest.getKey());
+        }
+        if (hotBoards.putIfAbsent(boardId, estimate) == null) {
+            log.info("发现热点榜单：{}，估计访问量{}", boardId, estimate);
+        }
+    }
+}
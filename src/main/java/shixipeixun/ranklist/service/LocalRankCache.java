@@ -0,0 +1,230 @@
+package shixipeixun.ranklist.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的排行榜近端缓存（放在Redis前面）
+ * 1. key和Redis缓存key一致（generateCacheKey生成）
+ * 2. 按榜单条目总数限制容量，超出时按LRU淘汰
+ * 3. 每个榜单有过期时间，即使漏收了失效通知也会自动过期
+ * 4. 同时缓存每天的当前数据版本号和过期版本号，避免每次查询都去Redis读
+ *    清空时版本号只标记为过期，Redis读不到时还能继续用上一次读到的版本号
+ * 5. 失效时代数加一，失效之前从Redis读到的旧数据不再放入缓存（后台刷新不换key）
+ */
+@Slf4j
+@Component
+public class LocalRankCache {
+
+    private static final int MAX_BOARDS = 2000; // 最多缓存的榜单个数
+    private static final long MAX_WEIGHT = 500_000; // 所有榜单加起来最多缓存的条目数
+    private static final long EXPIRE_MILLIS = 10 * 60 * 1000L; // 本地缓存10分钟
+    private static final long VERSION_EXPIRE_MILLIS = 5000L; // 版本号本地缓存5秒
+    private static final long VERSION_RETAIN_MILLIS = 1000L; // Redis读不到版本号时，继续用旧版本号多久再重试
+
+    // accessOrder=true，按访问顺序排列，实现LRU
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalWeight = 0;
+
+    // 失效的代数，每次invalidate、invalidateAll加一
+    private long generation = 0;
+
+    // 日期 -> 当前数据版本号
+    private final ConcurrentHashMap<String, VersionEntry> versions = new ConcurrentHashMap<>();
+
+    // 日期 -> 12点重置时的数据版本号（不超过这个版本的榜单都已逻辑过期）
+    private final ConcurrentHashMap<String, VersionEntry> staleVersions = new ConcurrentHashMap<>();
+
+    /**
+     * 查询本地缓存，没有或已过期返回null
+     */
+    public synchronized List<MerchantRankInfo> get(String cacheKey) {
+        Entry entry = entries.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt < System.currentTimeMillis()) {
+            removeEntry(cacheKey);
+            return null;
+        }
+        return entry.board;
+    }
+
+    /**
+     * 放入本地缓存，返回不可修改的榜单（多个请求共享同一份数据）
+     */
+    public List<MerchantRankInfo> put(String cacheKey, List<MerchantRankInfo> board) {
+        List<MerchantRankInfo> shared = Collections.unmodifiableList(board);
+        // 单个榜单就超过容量的不缓存
+        if (weightOf(shared) > MAX_WEIGHT) {
+            return shared;
+        }
+
+        synchronized (this) {
+            removeEntry(cacheKey);
+            Entry entry = new Entry(shared, System.currentTimeMillis() + EXPIRE_MILLIS);
+            entries.put(cacheKey, entry);
+            totalWeight += entry.weight;
+            evictIfNecessary();
+        }
+        return shared;
+    }
+
+    /**
+     * 放入本地缓存，读取期间有失效的不放（读到的可能是失效之前的旧数据），照样返回不可修改的榜单
+     * @param loadGeneration 开始读取之前的generation()
+     */
+    public List<MerchantRankInfo> put(String cacheKey, List<MerchantRankInfo> board, long loadGeneration) {
+        synchronized (this) {
+            if (loadGeneration != generation) {
+                return Collections.unmodifiableList(board);
+            }
+        }
+        return put(cacheKey, board);
+    }
+
+    /**
+     * 当前的失效代数，从Redis读取之前先记下来
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * 让某个榜单失效
+     */
+    public synchronized void invalidate(String cacheKey) {
+        removeEntry(cacheKey);
+        generation++;
+    }
+
+    /**
+     * 清空所有本地缓存（有新数据发布时调用）
+     */
+    public synchronized void invalidateAll() {
+        log.debug("清空本地排行榜缓存，共{}个榜单", entries.size());
+        entries.clear();
+        totalWeight = 0;
+        generation++;
+        versions.replaceAll((date, entry) -> new VersionEntry(entry.version, 0));
+        staleVersions.replaceAll((date, entry) -> new VersionEntry(entry.version, 0));
+    }
+
+    /**
+     * 查询某天的当前数据版本号，没有或已过期返回null
+     */
+    public Long getVersion(String date) {
+        VersionEntry entry = versions.get(date);
+        if (entry == null || entry.expireAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return entry.version;
+    }
+
+    public void putVersion(String date, long version) {
+        versions.put(date, new VersionEntry(version, System.currentTimeMillis() + VERSION_EXPIRE_MILLIS));
+    }
+
+    /**
+     * Redis读不到版本号时继续用上一次读到的（包括已过期的），短时间内不再读Redis
+     * @return 上一次读到的版本号，本实例没读到过返回null
+     */
+    public Long retainVersion(String date) {
+        return retain(versions, date);
+    }
+
+    /**
+     * 查询某天的过期版本号，没有或已过期返回null
+     */
+    public Long getStaleVersion(String date) {
+        VersionEntry entry = staleVersions.get(date);
+        if (entry == null || entry.expireAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return entry.version;
+    }
+
+    public void putStaleVersion(String date, long version) {
+        staleVersions.put(date, new VersionEntry(version, System.currentTimeMillis() + VERSION_EXPIRE_MILLIS));
+    }
+
+    /**
+     * 同retainVersion，用于过期版本号
+     */
+    public Long retainStaleVersion(String date) {
+        return retain(staleVersions, date);
+    }
+
+    private static Long retain(ConcurrentHashMap<String, VersionEntry> versions, String date) {
+        VersionEntry entry = versions.computeIfPresent(date,
+                (key, old) -> new VersionEntry(old.version, System.currentTimeMillis() + VERSION_RETAIN_MILLIS));
+        return entry == null ? null : entry.version;
+    }
+
+    /**
+     * 最近访问的非空榜单的缓存key（最近访问的在前面），清空前用来记录需要重新预热的榜单
+     * key里带有周期和日期，预热时按原来的查询加载
+     */
+    public synchronized List<String> recentKeys(int limit) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!entry.getValue().board.isEmpty()) {
+                keys.add(entry.getKey());
+            }
+        }
+        Collections.reverse(keys);
+        return keys.size() > limit ? new ArrayList<>(keys.subList(0, limit)) : keys;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void removeEntry(String cacheKey) {
+        Entry removed = entries.remove(cacheKey);
+        if (removed != null) {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    /**
+     * 超过个数或条目数上限时，从最久没访问的榜单开始淘汰
+     */
+    private void evictIfNecessary() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > MAX_BOARDS || totalWeight > MAX_WEIGHT) && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            totalWeight -= eldest.weight;
+            it.remove();
+        }
+    }
+
+    private static int weightOf(List<MerchantRankInfo> board) {
+        // 空榜单也占一个位置
+        return Math.max(1, board.size());
+    }
+
+    private static class Entry {
+        private final List<MerchantRankInfo> board;
+        private final long expireAt;
+        private final int weight;
+
+        private Entry(List<MerchantRankInfo> board, long expireAt) {
+            this.board = board;
+            this.expireAt = expireAt;
+            this.weight = weightOf(board);
+        }
+    }
+
+    private record VersionEntry(long version, long expireAt) {
+    }
+}
@@ -0,0 +1,88 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * 榜单准入检查：用布隆过滤器挡住不存在的cityId/type/category组合，不用再查Redis和数据库
+ * 1. 数据仓库有变化时用当天所有有数据的榜单重建，存到Redis（rank:bloom:{date}），所有实例共用
+ * 2. 各实例在收到失效通知时和每分钟从Redis加载到内存，查询时只在内存里判断
+ * 3. 没有今天的过滤器（还没发布、Redis不可用）时全部放行
+ */
+@Slf4j
+@Component
+public class RankAdmissionFilter {
+
+    private static final String FILTER_PREFIX = "rank:bloom:"; // 每天的榜单布隆过滤器（二进制）
+    private static final long FILTER_EXPIRE = 86400 * 2; // 保留2天
+    private static final double FALSE_POSITIVE_RATE = 0.01; // 不存在的榜单有1%会被放行
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 当前加载的过滤器，只对它的日期有效
+    private volatile Loaded loaded;
+
+    /**
+     * 重建某天的过滤器并保存到Redis
+     * @param boardIds 当天所有有数据的榜单标识 cityId:type:category
+     */
+    public void rebuild(String date, Collection<String> boardIds) {
+        BoardBloomFilter filter = BoardBloomFilter.of(boardIds, FALSE_POSITIVE_RATE);
+        byte[] key = (FILTER_PREFIX + date).getBytes(StandardCharsets.UTF_8);
+        byte[] value = filter.toBytes();
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(key, value, Expiration.seconds(FILTER_EXPIRE), RedisStringCommands.SetOption.upsert()));
+        loaded = new Loaded(date, filter);
+        log.info("重建榜单过滤器：{}，{}个榜单，{}字节", date, boardIds.size(), value.length);
+    }
+
+    /**
+     * 榜单是否可能存在，返回false时一定不存在
+     */
+    public boolean mightExist(String date, String boardId) {
+        Loaded current = loaded;
+        if (current == null || !current.date().equals(date)) {
+            return true;
+        }
+        return current.filter().mightContain(boardId);
+    }
+
+    /**
+     * 每分钟从Redis加载一次今天的过滤器（新启动的实例、漏收通知时也能拿到）
+     */
+    @Scheduled(fixedRate = 60000)
+    public void reload() {
+        String today = RankService.getTodayDate();
+        try {
+            byte[] key = (FILTER_PREFIX + today).getBytes(StandardCharsets.UTF_8);
+            byte[] value = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().get(key));
+            loaded = value == null ? null : new Loaded(today, BoardBloomFilter.fromBytes(value));
+        } catch (Exception e) {
+            // 加载失败时保留原来的过滤器，日期不对时自然放行
+            log.warn("加载榜单过滤器失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 有新数据发布时重新加载
+     */
+    @EventListener
+    public void onCacheCleared(RankCacheClearedEvent event) {
+        reload();
+    }
+
+    private record Loaded(String date, BoardBloomFilter filter) {
+    }
+}
@@ -0,0 +1,8 @@
+package shixipeixun.ranklist.service;
+
+/**
+ * 某个榜单的本地缓存失效（后台刷新了过期榜单）
+ * @param cacheKey 失效的缓存key
+ */
+public record RankBoardInvalidatedEvent(String cacheKey) {
+}
@@ -0,0 +1,295 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 榜单更新推送（Server-Sent Events），代替客户端轮询/rank
+ * 1. 客户端订阅某个榜单，连上时先推送一次当前榜单，之后有新数据发布时推送新榜单
+ * 2. 每个实例收到失效通知后，每个被订阅的榜单只读取、编码一次，再发给所有订阅者（内容没变的不推送）
+ * 3. 连接用Servlet异步处理，空闲的订阅不占用线程；定时发送心跳，及时发现断开的连接
+ */
+@Slf4j
+@Component
+public class RankBoardStream {
+
+    private static final long STREAM_TIMEOUT_MILLIS = 30 * 60 * 1000L; // 连接最长保持30分钟，之后客户端自动重连
+    private static final long PUSH_DELAY_MILLIS = 500; // 收到通知后延迟多久推送（合并短时间内的多次通知）
+    private static final long RECONNECT_MILLIS = 5000; // 断线后客户端等待多久重连
+    private static final int SEND_THREADS = 4; // 发送推送的线程数
+
+    @Resource
+    private RankService rankService;
+
+    @Resource
+    private RankResponseCache rankResponseCache;
+
+    @Resource
+    private RankMetrics rankMetrics;
+
+    // 每个实例最多的订阅连接数
+    @Value("${rank.stream.max-subscribers:50000}")
+    private int maxSubscribers;
+
+    // 榜单（cityId:type:category:rankCycle） -> 订阅者
+    private final ConcurrentHashMap<String, Board> boards = new ConcurrentHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    // 发送推送的线程池，按榜单分配任务
+    private final ExecutorService sendExecutor = Executors.newFixedThreadPool(SEND_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "rank-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 延迟执行推送的线程
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rank-stream-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean pushScheduled = new AtomicBoolean(false);
+
+    @PostConstruct
+    public void registerMetrics() {
+        rankMetrics.streamSubscribers(subscribers::get);
+    }
+
+    /**
+     * 订阅某个榜单的更新
+     * @param dto 查询参数：cityId, type, category，可选周期rankCycle（不分页）
+     * @param lastEventId 断线重连时浏览器带上的最后一次收到的ETag，和当前一致时不再重复推送
+     * @return 订阅连接，连接数已满时返回null
+     */
+    public SseEmitter subscribe(RankQueryDTO dto, String lastEventId) {
+        if (subscribers.incrementAndGet() > maxSubscribers) {
+            subscribers.decrementAndGet();
+            return null;
+        }
+
+        String key = dto.getCityId() + ":" + dto.getType() + ":" + dto.getCategory() + ":" + dto.getRankCycle();
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MILLIS);
+        boards.compute(key, (k, board) -> {
+            Board target = board != null ? board : new Board(boardQuery(dto));
+            target.emitters.add(emitter);
+            return target;
+        });
+        AtomicBoolean removed = new AtomicBoolean(false);
+        Runnable remove = () -> {
+            if (removed.compareAndSet(false, true)) {
+                subscribers.decrementAndGet();
+                boards.computeIfPresent(key, (k, board) -> {
+                    board.emitters.remove(emitter);
+                    return board.emitters.isEmpty() ? null : board;
+                });
+            }
+        };
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+
+        // 连上时先推送一次当前榜单
+        Board board = boards.get(key);
+        RankQueryDTO query = board != null ? board.query : boardQuery(dto);
+        rankService.boardCacheKeyAsync(query)
+                .exceptionally(e -> null)
+                .thenCompose(cacheKey -> rankResponseCache.getOrEncodeAsync(cacheKey, null, null,
+                        () -> rankService.getRankAsync(query)))
+                .thenAcceptAsync(encoded -> {
+                    if (isEmpty(encoded)) {
+                        return;
+                    }
+                    // 记下推送过的内容，之后的通知内容没变时不再重复推送
+                    if (board != null) {
+                        board.sent(encoded.json());
+                    }
+                    if (!encoded.etag().equals(lastEventId)) {
+                        send(emitter, boardEvent(encoded));
+                    }
+                }, sendExecutor)
+                .exceptionally(e -> {
+                    log.debug("推送当前榜单失败：{}", e.getMessage());
+                    return null;
+                });
+        return emitter;
+    }
+
+    /**
+     * 有新数据发布，本地缓存被整体清空
+     */
+    @EventListener
+    public void onCacheCleared(RankCacheClearedEvent event) {
+        schedulePush();
+    }
+
+    /**
+     * 后台刷新了某个过期榜单，只推送这个榜单的订阅者
+     */
+    @EventListener
+    public void onBoardInvalidated(RankBoardInvalidatedEvent event) {
+        for (Board board : boards.values()) {
+            sendExecutor.execute(() -> {
+                String cacheKey = rankService.boardCacheKey(board.query);
+                if (event.cacheKey().equals(cacheKey)) {
+                    pushBoard(board, cacheKey);
+                }
+            });
+        }
+    }
+
+    /**
+     * 定时发送心跳（SSE注释），代理不会因为空闲断开连接，断开的连接发送失败后清理掉
+     */
+    @Scheduled(fixedDelay = 30000)
+    public void heartbeat() {
+        for (Board board : boards.values()) {
+            sendExecutor.execute(() -> {
+                for (SseEmitter emitter : board.emitters) {
+                    send(emitter, SseEmitter.event().comment("ping").build());
+                }
+            });
+        }
+    }
+
+    public int subscriberCount() {
+        return subscribers.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        sendExecutor.shutdownNow();
+        for (Board board : boards.values()) {
+            for (SseEmitter emitter : board.emitters) {
+                emitter.complete();
+            }
+        }
+    }
+
+    /**
+     * 稍微延迟，短时间内的多次通知（连续发布、多个榜单刷新）合并成一次推送
+     */
+    private void schedulePush() {
+        if (!boards.isEmpty() && pushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::push, PUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void push() {
+        pushScheduled.set(false);
+        for (Board board : boards.values()) {
+            sendExecutor.execute(() -> pushBoard(board, rankService.boardCacheKey(board.query)));
+        }
+    }
+
+    /**
+     * 读取一次榜单（和/rank共用编码好的响应缓存），内容有变化时发给这个榜单的所有订阅者
+     */
+    private void pushBoard(Board board, String cacheKey) {
+        try {
+            EncodedBoard encoded = rankResponseCache.getOrEncode(cacheKey, null, null,
+                    () -> rankService.getRank(board.query));
+            // 空榜单可能是正在更新，等下次通知
+            if (isEmpty(encoded) || !board.changed(encoded.json())) {
+                return;
+            }
+
+            Set<ResponseBodyEmitter.DataWithMediaType> event = boardEvent(encoded);
+            int sent = 0;
+            for (SseEmitter emitter : board.emitters) {
+                if (send(emitter, event)) {
+                    sent++;
+                }
+            }
+            rankMetrics.streamPushed(sent);
+            log.debug("推送榜单更新：{}，{}个订阅者", board.query, sent);
+        } catch (Exception e) {
+            log.error("推送榜单更新出错：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 同一个事件发给多个订阅者，只构建一次
+     */
+    private static Set<ResponseBodyEmitter.DataWithMediaType> boardEvent(EncodedBoard encoded) {
+        return SseEmitter.event()
+                .name("board")
+                .id(encoded.etag())
+                .reconnectTime(RECONNECT_MILLIS)
+                .data(new String(encoded.json(), StandardCharsets.UTF_8), MediaType.APPLICATION_JSON)
+                .build();
+    }
+
+    /**
+     * 发送失败说明连接已经断开，结束连接（回调里取消订阅）
+     */
+    private static boolean send(SseEmitter emitter, Set<ResponseBodyEmitter.DataWithMediaType> event) {
+        try {
+            emitter.send(event);
+            return true;
+        } catch (Exception e) {
+            emitter.completeWithError(e);
+            return false;
+        }
+    }
+
+    private static boolean isEmpty(EncodedBoard encoded) {
+        return encoded.json().length <= 2;
+    }
+
+    /**
+     * 推送的是整个榜单，只保留定位榜单需要的参数
+     */
+    private static RankQueryDTO boardQuery(RankQueryDTO dto) {
+        RankQueryDTO query = new RankQueryDTO();
+        query.setCityId(dto.getCityId());
+        query.setType(dto.getType());
+        query.setCategory(dto.getCategory());
+        query.setRankCycle(dto.getRankCycle());
+        return query;
+    }
+
+    private static class Board {
+        private final RankQueryDTO query;
+        private final Set<SseEmitter> emitters = ConcurrentHashMap.newKeySet();
+        // 最后一次推送的内容，新版本内容没变时不推送
+        private byte[] lastJson;
+
+        private Board(RankQueryDTO query) {
+            this.query = query;
+        }
+
+        private synchronized boolean changed(byte[] json) {
+            if (Arrays.equals(lastJson, json)) {
+                return false;
+            }
+            lastJson = json;
+            return true;
+        }
+
+        private synchronized void sent(byte[] json) {
+            lastJson = json;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 排行榜缓存的跨实例通知（Redis发布/订阅）
+ * 1. 有新数据发布时，通知所有实例清掉本地缓存（榜单和编码好的响应），本实例先清，收到自己的通知时不再重复清
+ *    通知带上实例标识和序号，只跳过本实例发出的那一条，其他实例同一个key的通知照常处理
+ * 2. 某个榜单写入缓存后，唤醒其他实例中等待这个榜单的请求
+ * 3. 本地缓存被整体清空时发出RankCacheClearedEvent，由RankWarmer重新预热
+ * 4. 单个榜单失效时发出RankBoardInvalidatedEvent，由RankBoardStream推送给订阅者
+ */
+@Slf4j
+@Component
+public class RankCacheChannel implements MessageListener {
+
+    // 失效通知的频道，消息内容是"实例标识|序号|缓存key"，缓存key为"*"表示全部失效
+    public static final String INVALIDATE_TOPIC = "rank:channel:invalidate";
+    private static final String INVALIDATE_ALL = "*";
+    private static final char MESSAGE_SEPARATOR = '|';
+
+    // 整体清空时记录最近访问的榜单个数，用来重新预热
+    private static final int HOT_BOARDS_TO_REWARM = 500;
+
+    // 榜单写入缓存的频道，消息内容是缓存key
+    public static final String LOADED_TOPIC = "rank:channel:loaded";
+
+    // 自己发出的通知最多等多久收回来，超过就不再当成自己的
+    private static final long ECHO_WAIT_MILLIS = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LocalRankCache localRankCache;
+
+    @Resource
+    private RankResponseCache rankResponseCache;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    // 订阅容器，连上之后断线会自己重连
+    private volatile RedisMessageListenerContainer container;
+
+    // 等待榜单写入缓存的请求（每个实例每个榜单最多一个，见RankService的请求合并）
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> loadWaiters = new ConcurrentHashMap<>();
+
+    // 本实例的标识，每次启动都不同，发出的失效通知带上它和序号
+    private final String instanceId = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // 本实例发出、还没从Redis收回来的失效通知（序号 -> 发送时间），收到实例标识和序号都一样的通知时跳过，不重复清空
+    private final ConcurrentHashMap<Long, Long> sentInvalidates = new ConcurrentHashMap<>();
+
+    /**
+     * 通知所有实例清空本地缓存
+     */
+    public void publishInvalidateAll() {
+        publishInvalidate(INVALIDATE_ALL);
+    }
+
+    /**
+     * 通知所有实例让某个榜单失效
+     */
+    public void publishInvalidate(String cacheKey) {
+        // 先清自己的，不依赖Redis消息回来；已订阅时记下这条通知，收回来时跳过
+        applyInvalidate(cacheKey);
+        long seq = sequence.incrementAndGet();
+        if (container != null) {
+            sentInvalidates.put(seq, System.currentTimeMillis());
+        }
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATE_TOPIC,
+                    instanceId + MESSAGE_SEPARATOR + seq + MESSAGE_SEPARATOR + cacheKey);
+        } catch (Exception e) {
+            log.error("发送缓存失效通知失败：{}", e.getMessage());
+            sentInvalidates.remove(seq);
+        }
+    }
+
+    /**
+     * 通知所有实例：某个榜单已经写入缓存
+     */
+    public void publishLoaded(String cacheKey) {
+        completeWaiter(cacheKey);
+        try {
+            stringRedisTemplate.convertAndSend(LOADED_TOPIC, cacheKey);
+        } catch (Exception e) {
+            log.error("发送榜单加载通知失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 等待某个榜单写入缓存，收到通知时完成
+     */
+    public CompletableFuture<Void> awaitLoaded(String cacheKey) {
+        return loadWaiters.computeIfAbsent(cacheKey, key -> new CompletableFuture<>());
+    }
+
+    /**
+     * 不再等待（超时或已经拿到数据）
+     */
+    public void cancelAwait(String cacheKey, CompletableFuture<Void> waiter) {
+        loadWaiters.remove(cacheKey, waiter);
+    }
+
+    /**
+     * 启动时Redis可能还连不上，所以不在启动阶段订阅，而是定时检查，订阅成功后就不再处理
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void subscribeIfNecessary() {
+        // 顺便清理一直没有收回来的通知（订阅断开期间发出的）
+        long expired = System.currentTimeMillis() - ECHO_WAIT_MILLIS;
+        sentInvalidates.values().removeIf(sentAt -> sentAt < expired);
+
+        if (container != null) {
+            return;
+        }
+
+        RedisMessageListenerContainer newContainer = new RedisMessageListenerContainer();
+        newContainer.setConnectionFactory(redisConnectionFactory);
+        newContainer.addMessageListener(this, List.of(new ChannelTopic(INVALIDATE_TOPIC), new ChannelTopic(LOADED_TOPIC)));
+        try {
+            newContainer.afterPropertiesSet();
+            newContainer.start();
+            container = newContainer;
+            log.info("已订阅排行榜缓存通知频道");
+        } catch (Exception e) {
+            log.warn("订阅排行榜缓存通知失败，稍后重试：{}", e.getMessage());
+            destroyQuietly(newContainer);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (container != null) {
+            destroyQuietly(container);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+
+        if (LOADED_TOPIC.equals(channel)) {
+            completeWaiter(body);
+            return;
+        }
+
+        // 旧格式的消息只有缓存key（没有实例标识），一定不是本实例发的
+        String cacheKey = body;
+        int idEnd = body.indexOf(MESSAGE_SEPARATOR);
+        int seqEnd = idEnd < 0 ? -1 : body.indexOf(MESSAGE_SEPARATOR, idEnd + 1);
+        if (seqEnd > 0) {
+            cacheKey = body.substring(seqEnd + 1);
+            if (isOwnEcho(body.substring(0, idEnd), body.substring(idEnd + 1, seqEnd))) {
+                log.debug("收到本实例发出的缓存失效通知，已经处理过：{}", cacheKey);
+                return;
+            }
+        }
+        log.debug("收到缓存失效通知：{}", cacheKey);
+        applyInvalidate(cacheKey);
+    }
+
+    /**
+     * 是否是本实例发出、还在等待收回的那一条通知（实例标识和序号都一样）
+     */
+    private boolean isOwnEcho(String senderId, String seq) {
+        if (!instanceId.equals(senderId)) {
+            return false;
+        }
+        try {
+            return sentInvalidates.remove(Long.parseLong(seq)) != null;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void completeWaiter(String cacheKey) {
+        CompletableFuture<Void> waiter = loadWaiters.remove(cacheKey);
+        if (waiter != null) {
+            waiter.complete(null);
+        }
+    }
+
+    private void applyInvalidate(String cacheKey) {
+        if (INVALIDATE_ALL.equals(cacheKey)) {
+            List<RankQueryDTO> hotBoards = new ArrayList<>();
+            for (String hotKey : localRankCache.recentKeys(HOT_BOARDS_TO_REWARM)) {
+                RankQueryDTO query = RankService.queryOfCacheKey(hotKey);
+                if (query != null) {
+                    hotBoards.add(query);
+                }
+            }
+            localRankCache.invalidateAll();
+            rankResponseCache.invalidateAll();
+            eventPublisher.publishEvent(new RankCacheClearedEvent(hotBoards));
+        } else {
+            localRankCache.invalidate(cacheKey);
+            rankResponseCache.invalidate(cacheKey);
+            eventPublisher.publishEvent(new RankBoardInvalidatedEvent(cacheKey));
+        }
+    }
+
+    private void destroyQuietly(RedisMessageListenerContainer target) {
+        try {
+            target.destroy();
+        } catch (Exception e) {
+            log.debug("关闭订阅容器出错：{}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package shixipeixun.ranklist.service;
+
+import shixipeixun.ranklist.dto.RankQueryDTO;
+
+import java.util.List;
+
+/**
+ * 本地缓存被整体清空（有新数据发布）
+ * @param hotBoards 清空前本地缓存里最近访问的榜单的查询参数（带周期和日期），用来重新预热
+ */
+public record RankCacheClearedEvent(List<RankQueryDTO> hotBoards) {
+}
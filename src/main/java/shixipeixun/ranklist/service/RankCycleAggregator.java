@@ -0,0 +1,212 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.zset.Aggregate;
+import org.springframework.data.redis.connection.zset.Weights;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 周榜、月榜的增量聚合
+ * 1. 每次发布日榜时，把每个榜单当天的销量写到当天的分数集合（有序集合，merchantId -> saleNumDay）
+ * 2. 周期聚合 = 前一天的周期聚合 + 当天 - 滑出窗口的那一天（ZUNIONSTORE带权重1,1,-1），全在Redis里完成
+ * 3. 前一天的聚合不存在时，用窗口内每天的分数集合重新合并一次
+ * 4. 周榜、月榜按聚合后的销量排名，不查数据库
+ */
+@Slf4j
+@Component
+public class RankCycleAggregator {
+
+    // 周期类型，和MerchantRankInfo.rankCycle一致
+    public static final int CYCLE_DAY = 1;
+    public static final int CYCLE_WEEK = 2;
+    public static final int CYCLE_MONTH = 3;
+
+    private static final String SCORE_PREFIX = "rank:score:"; // 每天每个榜单的销量（有序集合）
+    private static final String CYCLE_PREFIX = "rank:c"; // 周期聚合：rank:c{cycle}:cityId:type:category:date
+
+    private static final int WEEK_DAYS = 7;
+    private static final int MONTH_DAYS = 30;
+    private static final int SCORE_EXPIRE = 86400 * 32; // 每天的分数要保留到月榜窗口之外
+    private static final int CYCLE_EXPIRE = 86400 * 3; // 第二天增量聚合时还要用到
+
+    private static final int FOLD_BATCH_SIZE = 200; // 每个pipeline处理的榜单个数
+    public static final int MAX_CYCLE_BOARD_SIZE = 1000; // 周榜、月榜最多返回的条数
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 是否是周榜或月榜
+     */
+    public static boolean isCycle(Integer rankCycle) {
+        return rankCycle != null && (rankCycle == CYCLE_WEEK || rankCycle == CYCLE_MONTH);
+    }
+
+    /**
+     * 把当天发布的榜单合并到周榜、月榜
+     * @param boards 榜单标识 -> 当天的榜单数据
+     */
+    public void fold(String date, Map<String, List<MerchantRankInfo>> boards) {
+        List<Map.Entry<String, List<MerchantRankInfo>>> entries = new ArrayList<>(boards.entrySet());
+        for (int from = 0; from < entries.size(); from += FOLD_BATCH_SIZE) {
+            foldBatch(date, entries.subList(from, Math.min(from + FOLD_BATCH_SIZE, entries.size())));
+        }
+    }
+
+    /**
+     * 读取周榜或月榜，聚合还不存在时先用窗口内每天的分数合并一次
+     */
+    public List<MerchantRankInfo> readBoard(RankQueryDTO dto, String boardId, String date) {
+        int cycle = dto.getRankCycle();
+        String cycleKey = cycleKey(cycle, boardId, date);
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(cycleKey))) {
+            stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                    rebuild((RedisOperations<String, String>) operations, cycle, boardId, date);
+                    return null;
+                }
+            });
+        }
+
+        Set<ZSetOperations.TypedTuple<String>> tuples =
+                stringRedisTemplate.opsForZSet().reverseRangeWithScores(cycleKey, 0, MAX_CYCLE_BOARD_SIZE - 1);
+        List<MerchantRankInfo> board = new ArrayList<>();
+        if (tuples == null) {
+            return board;
+        }
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            MerchantRankInfo info = new MerchantRankInfo();
+            info.setCityId(dto.getCityId());
+            info.setType(dto.getType());
+            info.setCategory(dto.getCategory());
+            info.setMerchantId(Long.valueOf(tuple.getValue()));
+            info.setSort(board.size() + 1);
+            info.setSaleNumDay(tuple.getScore() == null ? 0 : tuple.getScore().intValue());
+            info.setDate(date);
+            info.setRankCycle(cycle);
+            board.add(info);
+        }
+        return board;
+    }
+
+    private void foldBatch(String date, List<Map.Entry<String, List<MerchantRankInfo>>> batch) {
+        String previous = LocalDate.parse(date).minusDays(1).toString();
+
+        // 1. 前一天的聚合还在不在（在的话增量合并）
+        List<Object> exists = stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (Map.Entry<String, List<MerchantRankInfo>> entry : batch) {
+                    ops.hasKey(cycleKey(CYCLE_WEEK, entry.getKey(), previous));
+                    ops.hasKey(cycleKey(CYCLE_MONTH, entry.getKey(), previous));
+                }
+                return null;
+            }
+        });
+
+        // 2. 写当天的分数，再合并周期聚合
+        stringRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (int i = 0; i < batch.size(); i++) {
+                    String boardId = batch.get(i).getKey();
+                    writeScores(ops, boardId, date, batch.get(i).getValue());
+                    foldCycle(ops, CYCLE_WEEK, boardId, date, Boolean.TRUE.equals(exists.get(i * 2)));
+                    foldCycle(ops, CYCLE_MONTH, boardId, date, Boolean.TRUE.equals(exists.get(i * 2 + 1)));
+                }
+                return null;
+            }
+        });
+    }
+
+    private void writeScores(RedisOperations<String, String> ops, String boardId, String date,
+                             List<MerchantRankInfo> board) {
+        String scoreKey = scoreKey(boardId, date);
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>();
+        for (MerchantRankInfo info : board) {
+            if (info.getMerchantId() != null) {
+                double sales = info.getSaleNumDay() == null ? 0 : info.getSaleNumDay();
+                tuples.add(ZSetOperations.TypedTuple.of(String.valueOf(info.getMerchantId()), sales));
+            }
+        }
+        ops.delete(scoreKey);
+        if (!tuples.isEmpty()) {
+            ops.opsForZSet().add(scoreKey, tuples);
+            ops.expire(scoreKey, SCORE_EXPIRE, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 周期聚合 = 前一天的聚合 + 当天 - 滑出窗口的那一天
+     * 同一天重复发布时也是从前一天的聚合算起，结果不会重复累加
+     */
+    private void foldCycle(RedisOperations<String, String> ops, int cycle, String boardId, String date,
+                           boolean previousExists) {
+        if (!previousExists) {
+            rebuild(ops, cycle, boardId, date);
+            return;
+        }
+        LocalDate day = LocalDate.parse(date);
+        String cycleKey = cycleKey(cycle, boardId, date);
+        ops.opsForZSet().unionAndStore(cycleKey(cycle, boardId, day.minusDays(1).toString()),
+                List.of(scoreKey(boardId, date), scoreKey(boardId, day.minusDays(windowDays(cycle)).toString())),
+                cycleKey, Aggregate.SUM, Weights.of(1, 1, -1));
+        trimAndExpire(ops, cycleKey);
+    }
+
+    /**
+     * 用窗口内每天的分数重新合并
+     */
+    private void rebuild(RedisOperations<String, String> ops, int cycle, String boardId, String date) {
+        LocalDate day = LocalDate.parse(date);
+        List<String> days = new ArrayList<>();
+        for (int i = 1; i < windowDays(cycle); i++) {
+            days.add(scoreKey(boardId, day.minusDays(i).toString()));
+        }
+        String cycleKey = cycleKey(cycle, boardId, date);
+        ops.opsForZSet().unionAndStore(scoreKey(boardId, date), days, cycleKey);
+        trimAndExpire(ops, cycleKey);
+    }
+
+    /**
+     * 去掉窗口内没有销量的商家
+     */
+    private void trimAndExpire(RedisOperations<String, String> ops, String cycleKey) {
+        ops.opsForZSet().removeRangeByScore(cycleKey, Double.NEGATIVE_INFINITY, 0);
+        ops.expire(cycleKey, CYCLE_EXPIRE, TimeUnit.SECONDS);
+    }
+
+    private static int windowDays(int cycle) {
+        return cycle == CYCLE_MONTH ? MONTH_DAYS : WEEK_DAYS;
+    }
+
+    private static String scoreKey(String boardId, String date) {
+        return SCORE_PREFIX + boardId + ":" + date;
+    }
+
+    /**
+     * 周期聚合的key，也是周榜、月榜的缓存key
+     */
+    public static String cycleKey(int cycle, String boardId, String date) {
+        return CYCLE_PREFIX + cycle + ":" + boardId + ":" + date;
+    }
+}
@@ -0,0 +1,148 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 缓存不可用时的降级
+ * 1. 直接查数据库时同一个榜单只查一次（请求合并），同时查数据库的线程数有上限（舱壁），不会占满连接池
+ * 2. 超过上限时不排队，返回最近一次成功读到的榜单（可能稍旧），没有就返回空列表
+ * 3. 最近成功读到的榜单按日期和榜单标识保存，不随本地缓存的失效、过期清除
+ * 4. 本地快照文件可能比数据库旧，只在查不了数据库时才用，而且日期要一致
+ */
+@Slf4j
+@Component
+public class RankFallback {
+
+    private static final int MAX_LAST_GOOD_BOARDS = 2000; // 最多保存的榜单个数
+    private static final long WAIT_MILLIS = 2000; // 等待同一个榜单查询结果的时间
+
+    @Resource
+    private RankMetrics rankMetrics;
+
+    @Resource
+    private RankSnapshot rankSnapshot;
+
+    // 同时直接查数据库的线程数上限
+    private final Semaphore permits;
+
+    private final SingleFlight<List<MerchantRankInfo>> loads = new SingleFlight<>();
+
+    // 日期:榜单标识 -> 最近一次成功读到的榜单，按访问顺序淘汰
+    private final LinkedHashMap<String, List<MerchantRankInfo>> lastGood = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<MerchantRankInfo>> eldest) {
+            return size() > MAX_LAST_GOOD_BOARDS;
+        }
+    };
+
+    public RankFallback(@Value("${rank.fallback.max-concurrency:4}") int maxConcurrency) {
+        this.permits = new Semaphore(Math.max(1, maxConcurrency));
+    }
+
+    /**
+     * 记录成功读到的榜单（空榜单不记录）
+     */
+    public void remember(String date, String boardId, List<MerchantRankInfo> board) {
+        if (board == null || board.isEmpty()) {
+            return;
+        }
+        synchronized (lastGood) {
+            lastGood.put(date + ":" + boardId, board);
+        }
+    }
+
+    /**
+     * 本实例最近一次成功读到的这一天的榜单，没有返回null
+     */
+    public List<MerchantRankInfo> lastGood(String date, String boardId) {
+        synchronized (lastGood) {
+            return lastGood.get(date + ":" + boardId);
+        }
+    }
+
+    /**
+     * 直接查数据库（合并 + 限流），查不了时返回最近成功读到的榜单或者快照
+     * @param query 查询数据库，失败时抛异常
+     */
+    public List<MerchantRankInfo> query(String date, String boardId, Supplier<List<MerchantRankInfo>> query) {
+        try {
+            List<MerchantRankInfo> board = loads.execute(date + ":" + boardId, () -> queryWithPermit(query), WAIT_MILLIS);
+            rankMetrics.fallback("database");
+            remember(date, boardId, board);
+            return board;
+        } catch (RejectedExecutionException | TimeoutException e) {
+            log.warn("降级查询数据库已满，返回最近的数据：{}", boardId);
+        } catch (Exception e) {
+            log.error("直接查询数据库也失败了：{}", e.getMessage());
+        }
+        return staleOrEmpty(date, boardId);
+    }
+
+    /**
+     * 优先返回本实例最近成功读到的榜单，没有再直接查数据库（Redis不可用时用，不增加数据库压力）
+     */
+    public List<MerchantRankInfo> lastGoodOrQuery(String date, String boardId, Supplier<List<MerchantRankInfo>> query) {
+        List<MerchantRankInfo> board = lastGood(date, boardId);
+        if (board != null) {
+            rankMetrics.fallback("stale");
+            return board;
+        }
+        return query(date, boardId, query);
+    }
+
+    private List<MerchantRankInfo> queryWithPermit(Supplier<List<MerchantRankInfo>> query) {
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("降级查询数据库的线程数已满");
+        }
+        try {
+            return query.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * 不查数据库的降级（周榜、月榜只在Redis里聚合）：本实例读到过的，没有返回空列表
+     */
+    public List<MerchantRankInfo> lastGoodOrEmpty(String date, String boardId) {
+        return staleOrEmpty(date, boardId);
+    }
+
+    /**
+     * 数据库查不了：先用本实例读到过的，再用同一天的快照，都没有返回空列表
+     */
+    private List<MerchantRankInfo> staleOrEmpty(String date, String boardId) {
+        List<MerchantRankInfo> board = lastGood(date, boardId);
+        if (board == null) {
+            board = snapshot(date, boardId);
+        }
+        if (board != null) {
+            rankMetrics.fallback("stale");
+            return board;
+        }
+        rankMetrics.fallback("shed");
+        return new ArrayList<>();
+    }
+
+    private List<MerchantRankInfo> snapshot(String date, String boardId) {
+        try {
+            return rankSnapshot.get(date, boardId);
+        } catch (RuntimeException e) {
+            log.warn("从快照读取榜单失败：{}", e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 定时任务的主实例选举（基于Redis租约）
+ * 1. 租约key的值是 实例ID|令牌，抢到租约时令牌加一（fencing token），续约时不变
+ * 2. 每2秒续约一次，租约10秒；主实例挂了，最多一个租约周期加一个续约间隔（12秒）后其他实例接手
+ * 3. 本地在租约到期前留出余量就不再认为自己是主实例，避免和新的主实例同时执行
+ * 4. 写入时带上令牌，存储方拒绝比见过的令牌更小的写入（见RankService的版本切换和12点重置）
+ */
+@Slf4j
+@Component
+public class RankLeaderElection {
+
+    public static final String LEASE_KEY = "rank:leader"; // 租约：实例ID|令牌
+    public static final String FENCE_KEY = "rank:leader:fence"; // 已经生效的最大令牌
+    private static final String TOKEN_SEQ_KEY = "rank:leader:seq"; // 令牌生成器
+
+    private static final long RENEW_MILLIS = 2000; // 续约间隔，不是主实例时也按这个间隔检查租约
+    private static final long LEASE_MILLIS = 10000; // 租约时长
+    private static final long SAFETY_MILLIS = 3000; // 本地提前多久认为租约已失效
+
+    // 续约或抢租约，返回令牌，租约在别的实例手里返回0
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "local current = redis.call('GET', KEYS[1]) " +
+            "if current then " +
+            "  local sep = string.find(current, '|', 1, true) " +
+            "  if string.sub(current, 1, sep - 1) == ARGV[1] then " +
+            "    redis.call('PEXPIRE', KEYS[1], ARGV[2]) " +
+            "    return tonumber(string.sub(current, sep + 1)) " +
+            "  end " +
+            "  return 0 " +
+            "end " +
+            "local token = redis.call('INCR', KEYS[2]) " +
+            "redis.call('SET', KEYS[1], ARGV[1] .. '|' .. token, 'PX', ARGV[2]) " +
+            "return token", Long.class);
+
+    // 只释放自己的租约
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+            "  return redis.call('DEL', KEYS[1]) " +
+            "end " +
+            "return 0", Long.class);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 实例ID：pid@主机名 + 随机串（同一台机器上重启也不会重复）
+    private final String instanceId = ManagementFactory.getRuntimeMXBean().getName() + ":"
+            + UUID.randomUUID().toString().substring(0, 8);
+
+    // 当前令牌，不是主实例时为0
+    private volatile long token = 0;
+    // 本地认为租约有效的截止时间
+    private volatile long validUntil = 0;
+
+    /**
+     * 定时续约，不是主实例时尝试抢租约
+     */
+    @Scheduled(fixedRate = RENEW_MILLIS)
+    public void renew() {
+        long start = System.currentTimeMillis();
+        try {
+            Long result = stringRedisTemplate.execute(ACQUIRE_SCRIPT, List.of(LEASE_KEY, TOKEN_SEQ_KEY),
+                    instanceId, String.valueOf(LEASE_MILLIS));
+            long newToken = result == null ? 0 : result;
+            if (newToken > 0) {
+                if (newToken != token) {
+                    log.info("成为定时任务的主实例：{}，令牌{}", instanceId, newToken);
+                }
+                // 按发出命令的时间算，网络慢的时候只会更保守
+                validUntil = start + LEASE_MILLIS - SAFETY_MILLIS;
+            } else if (token > 0) {
+                log.warn("租约已被其他实例取得，不再执行定时任务：{}", instanceId);
+            }
+            token = newToken;
+        } catch (Exception e) {
+            // 续约失败时不清令牌，本地租约到期后自然失效
+            log.warn("续约失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 本实例现在是否是主实例
+     */
+    public boolean isLeader() {
+        return token > 0 && System.currentTimeMillis() < validUntil;
+    }
+
+    /**
+     * 当前的令牌，写入时带上，用来拒绝已经被取代的主实例的写入
+     */
+    public long fencingToken() {
+        return token;
+    }
+
+    @PreDestroy
+    public void release() {
+        if (token == 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, List.of(LEASE_KEY), instanceId + "|" + token);
+            log.info("释放定时任务的租约：{}", instanceId);
+        } catch (Exception e) {
+            log.warn("释放租约失败：{}", e.getMessage());
+        }
+        token = 0;
+    }
+}
@@ -0,0 +1,192 @@
+package shixipeixun.ranklist.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 排行榜的监控指标（通过/actuator/prometheus暴露）
+ * 计数器和计时器在启动时创建好，热点路径上只做一次自增或记录，不再查找注册表
+ */
+@Component
+public class RankMetrics {
+
+    private final MeterRegistry registry;
+
+    // 缓存查询结果
+    private final Counter localHit;
+    private final Counter redisHit;
+    private final Counter redisMiss;
+    private final Counter nullMarker;
+    private final Counter waitingMarker;
+
+    // 分布式锁
+    private final Counter lockAcquired;
+    private final Counter lockLost;
+
+    // 降级：直接查了数据库、返回了最近的数据、没有数据直接返回空
+    private final Counter fallbackDatabase;
+    private final Counter fallbackStale;
+    private final Counter fallbackShed;
+
+    // Redis熔断的次数
+    private final Counter redisCircuitOpened;
+
+    // 写入缓存的榜单个数
+    private final Counter boardsLoaded;
+    private final Counter boardsPublished;
+    private final Counter boardsRefreshed;
+
+    // 推送给订阅者的榜单更新次数（每个订阅者算一次）
+    private final Counter streamPushed;
+
+    private final Timer redisGet;
+
+    // 按查询名、按接口和结果缓存的计时器
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public RankMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.localHit = cacheCounter("local_hit");
+        this.redisHit = cacheCounter("redis_hit");
+        this.redisMiss = cacheCounter("miss");
+        this.nullMarker = cacheCounter("null");
+        this.waitingMarker = cacheCounter("waiting");
+        this.lockAcquired = Counter.builder("rank.lock").tag("result", "acquired").register(registry);
+        this.lockLost = Counter.builder("rank.lock").tag("result", "lost").register(registry);
+        this.fallbackDatabase = fallbackCounter("database");
+        this.fallbackStale = fallbackCounter("stale");
+        this.fallbackShed = fallbackCounter("shed");
+        this.redisCircuitOpened = Counter.builder("rank.redis.circuit.opened").description("Redis熔断的次数").register(registry);
+        this.boardsLoaded = boardsCounter("miss");
+        this.boardsPublished = boardsCounter("publish");
+        this.boardsRefreshed = boardsCounter("stale_refresh");
+        this.streamPushed = Counter.builder("rank.stream.pushed").description("推送给订阅者的榜单更新次数").register(registry);
+        this.redisGet = histogram("rank.redis.get").register(registry);
+    }
+
+    public void localHit() {
+        localHit.increment();
+    }
+
+    public void redisHit() {
+        redisHit.increment();
+    }
+
+    public void redisMiss() {
+        redisMiss.increment();
+    }
+
+    public void nullMarker() {
+        nullMarker.increment();
+    }
+
+    public void waitingMarker() {
+        waitingMarker.increment();
+    }
+
+    public void lock(boolean acquired) {
+        (acquired ? lockAcquired : lockLost).increment();
+    }
+
+    /**
+     * @param result database、stale或shed
+     */
+    public void fallback(String result) {
+        switch (result) {
+            case "database" -> fallbackDatabase.increment();
+            case "stale" -> fallbackStale.increment();
+            default -> fallbackShed.increment();
+        }
+    }
+
+    public void redisCircuitOpened() {
+        redisCircuitOpened.increment();
+    }
+
+    public void boardsLoaded(int count) {
+        boardsLoaded.increment(count);
+    }
+
+    public void boardsPublished(int count) {
+        boardsPublished.increment(count);
+    }
+
+    public void boardsRefreshed(int count) {
+        boardsRefreshed.increment(count);
+    }
+
+    public void streamPushed(int count) {
+        streamPushed.increment(count);
+    }
+
+    /**
+     * 当前订阅榜单更新的连接数
+     */
+    public void streamSubscribers(Supplier<Number> count) {
+        Gauge.builder("rank.stream.subscribers", count).register(registry);
+    }
+
+    /**
+     * 记录一次Redis GET的耗时
+     */
+    public <T> T timeRedisGet(Supplier<T> get) {
+        long start = System.nanoTime();
+        try {
+            return get.get();
+        } finally {
+            recordRedisGet(start);
+        }
+    }
+
+    /**
+     * 记录一次Redis GET的耗时（异步查询时在回调里调用）
+     * @param startNanos 发出命令时的System.nanoTime()
+     */
+    public void recordRedisGet(long startNanos) {
+        redisGet.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录一次数据库查询的耗时
+     * @param query mapper方法名，例如selectByConditions
+     */
+    public <T> T timeQuery(String query, Supplier<T> select) {
+        Timer timer = timers.computeIfAbsent("db|" + query,
+                key -> histogram("rank.db.query").tag("query", query).register(registry));
+        return timer.record(select);
+    }
+
+    /**
+     * 记录一次接口请求的耗时
+     * @param startNanos 请求开始时的System.nanoTime()
+     * @param outcome 结果，例如ok、not_modified、empty、invalid
+     */
+    public void recordRequest(String endpoint, String outcome, long startNanos) {
+        Timer timer = timers.computeIfAbsent("http|" + endpoint + "|" + outcome,
+                key -> histogram("rank.request").tag("endpoint", endpoint).tag("outcome", outcome).register(registry));
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Counter cacheCounter(String result) {
+        return Counter.builder("rank.cache").tag("result", result).register(registry);
+    }
+
+    private Counter fallbackCounter(String result) {
+        return Counter.builder("rank.fallback").tag("result", result).register(registry);
+    }
+
+    private Counter boardsCounter(String source) {
+        return Counter.builder("rank.boards.written").tag("source", source).register(registry);
+    }
+
+    private static Timer.Builder histogram(String name) {
+        return Timer.builder(name).publishPercentileHistogram();
+    }
+}
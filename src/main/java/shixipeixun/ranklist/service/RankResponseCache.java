@@ -0,0 +1,218 @@
+package shixipeixun.ranklist.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 排行榜响应缓存
+ * 按（缓存key、offset、limit）缓存编码好的JSON和gzip内容，命中时直接输出字节，不用再序列化
+ * key里带有数据版本号，发布新数据时和本地榜单缓存一起清空
+ * 清空时代数加一，清空之前开始加载的结果不再放入缓存（后台刷新不换key，旧内容不能被放回去）
+ */
+@Component
+public class RankResponseCache {
+
+    private static final int MAX_RESPONSES = 5000; // 最多缓存的响应个数
+    private static final long MAX_BYTES = 256L * 1024 * 1024; // 所有响应加起来最多占用的字节数
+    private static final long EXPIRE_MILLIS = 10 * 60 * 1000L; // 和本地榜单缓存一样10分钟
+    private static final int GZIP_MIN_BYTES = 1024; // 小于1KB不压缩
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    // 异步查询时编码响应的线程池，线程数和CPU核数一致
+    private final ExecutorService encodeExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "rank-encode");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // accessOrder=true，按访问顺序排列，实现LRU
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes = 0;
+
+    // 清空的代数，每次invalidate、invalidateAll加一
+    private long generation = 0;
+
+    /**
+     * 获取编码好的排行榜响应，没有缓存时用loader查询榜单再编码
+     * @param cacheKey 榜单的缓存key（带数据版本号），为null时（版本号读不到）不缓存
+     */
+    public EncodedBoard getOrEncode(String cacheKey, Integer offset, Integer limit,
+                                    Supplier<List<MerchantRankInfo>> loader) {
+        if (cacheKey == null) {
+            return encode(loader.get(), "");
+        }
+        String responseKey = cacheKey + "|" + offset + "|" + limit;
+
+        EncodedBoard cached = get(responseKey);
+        if (cached != null) {
+            return cached;
+        }
+        long loadGeneration = generation();
+        return encodeAndPut(responseKey, cacheKey, loader.get(), loadGeneration);
+    }
+
+    /**
+     * 异步获取编码好的排行榜响应，没有缓存时用loader异步查询榜单再编码
+     * 编码比较耗CPU，放到编码线程池里执行，不占用Redis的IO线程
+     */
+    public CompletableFuture<EncodedBoard> getOrEncodeAsync(String cacheKey, Integer offset, Integer limit,
+                                                            Supplier<CompletableFuture<List<MerchantRankInfo>>> loader) {
+        if (cacheKey == null) {
+            return loader.get().thenApplyAsync(board -> encode(board, ""), encodeExecutor);
+        }
+        String responseKey = cacheKey + "|" + offset + "|" + limit;
+
+        EncodedBoard cached = get(responseKey);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long loadGeneration = generation();
+        return loader.get().thenApplyAsync(board -> encodeAndPut(responseKey, cacheKey, board, loadGeneration), encodeExecutor);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        encodeExecutor.shutdownNow();
+    }
+
+    private EncodedBoard encodeAndPut(String responseKey, String cacheKey, List<MerchantRankInfo> board,
+                                      long loadGeneration) {
+        EncodedBoard encoded = encode(board, cacheKey);
+
+        // 空列表可能是等待更新或者查询出错，不缓存
+        if (!board.isEmpty()) {
+            put(responseKey, encoded, loadGeneration);
+        }
+        return encoded;
+    }
+
+    /**
+     * 编码响应
+     */
+    public EncodedBoard encode(List<MerchantRankInfo> board, String cacheKey) {
+        byte[] json;
+        try {
+            json = objectMapper.writeValueAsBytes(board);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("排行榜序列化失败", e);
+        }
+        byte[] gzip = json.length >= GZIP_MIN_BYTES ? gzip(json) : null;
+        return new EncodedBoard(json, gzip, etag(cacheKey, json));
+    }
+
+    /**
+     * 清空所有响应缓存（有新数据发布时调用）
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+        totalBytes = 0;
+        generation++;
+    }
+
+    /**
+     * 清掉某个榜单的所有响应
+     */
+    public synchronized void invalidate(String cacheKey) {
+        generation++;
+        entries.entrySet().removeIf(e -> {
+            if (e.getKey().startsWith(cacheKey + "|")) {
+                totalBytes -= e.getValue().bytes;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private synchronized EncodedBoard get(String responseKey) {
+        Entry entry = entries.get(responseKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt < System.currentTimeMillis()) {
+            remove(responseKey);
+            return null;
+        }
+        return entry.encoded;
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * 放入缓存，加载期间被清空过的不放（加载的可能是清空之前的旧内容）
+     */
+    private synchronized void put(String responseKey, EncodedBoard encoded, long loadGeneration) {
+        if (loadGeneration != generation) {
+            return;
+        }
+        remove(responseKey);
+        Entry entry = new Entry(encoded, System.currentTimeMillis() + EXPIRE_MILLIS);
+        entries.put(responseKey, entry);
+        totalBytes += entry.bytes;
+
+        // 超过上限时从最久没访问的开始淘汰
+        var it = entries.entrySet().iterator();
+        while ((entries.size() > MAX_RESPONSES || totalBytes > MAX_BYTES) && it.hasNext()) {
+            totalBytes -= it.next().getValue().bytes;
+            it.remove();
+        }
+    }
+
+    private void remove(String responseKey) {
+        Entry removed = entries.remove(responseKey);
+        if (removed != null) {
+            totalBytes -= removed.bytes;
+        }
+    }
+
+    /**
+     * 原始JSON内容的强ETag：缓存key（带数据版本号）+ 内容的CRC32（gzip内容的见EncodedBoard.etag(true)）
+     */
+    private static String etag(String cacheKey, byte[] json) {
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        return "\"" + Integer.toHexString(cacheKey.hashCode()) + "-" + Long.toHexString(crc.getValue()) + "\"";
+    }
+
+    private static byte[] gzip(byte[] json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Entry {
+        private final EncodedBoard encoded;
+        private final long expireAt;
+        private final long bytes;
+
+        private Entry(EncodedBoard encoded, long expireAt) {
+            this.encoded = encoded;
+            this.expireAt = expireAt;
+            this.bytes = encoded.json().length + (encoded.gzip() == null ? 0 : encoded.gzip().length);
+        }
+    }
+}
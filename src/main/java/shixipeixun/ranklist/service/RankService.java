@@ -1,20 +1,62 @@
 package shixipeixun.ranklist.service;
 
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import shixipeixun.ranklist.dto.MerchantPositionDTO;
 import shixipeixun.ranklist.dto.RankQueryDTO;
+import shixipeixun.ranklist.entity.BoardWatermark;
 import shixipeixun.ranklist.entity.MerchantRankInfo;
 import shixipeixun.ranklist.mapper.MerchantRankInfoMapper;
+import shixipeixun.ranklist.serializer.RankBoardCodec;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
+@Slf4j
 @Service
 public class RankService {
 
@@ -24,329 +66,2221 @@ public class RankService {
     @Resource
     private RedisTemplate<String, Object> redisTemplate;
 
+    @Resource
+    private ReactiveRedisTemplate<String, Object> reactiveRedisTemplate;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+
+    @Resource
+    private LocalRankCache localRankCache;
+
+    @Resource
+    private RankCacheChannel rankCacheChannel;
+
+    @Resource
+    private RankMetrics rankMetrics;
+
+    @Resource
+    private RankCycleAggregator rankCycleAggregator;
+
+    @Resource
+    private HotBoardTracker hotBoardTracker;
+
+    @Resource
+    private RankAdmissionFilter rankAdmissionFilter;
+
+    @Resource
+    private RankFallback rankFallback;
+
+    @Resource
+    private RankSnapshot rankSnapshot;
+
+    @Resource
+    private SqlSessionFactory sqlSessionFactory;
+
+    @Resource
+    private RankLeaderElection rankLeaderElection;
+
+    // 按天全量加载时分几个分区并行读取（每个分区一个数据库连接）
+    @Value("${rank.refresh.partitions:1}")
+    private int refreshPartitions;
+
     // 缓存相关常量
     private static final String CACHE_PREFIX = "rank:";
     private static final String CACHE_NULL = "NULL"; // 表示数据为空
-    private static final String CACHE_WAITING = "WAITING"; // 表示等待数据更新
+    private static final String CACHE_WAITING = "WAITING"; // 旧版本重置时写的等待标记，升级期间还可能读到
     private static final String LOCK_PREFIX = "lock:rank:";
+    private static final String ZSET_SUFFIX = ":z"; // 榜单的有序集合（score是sort），用来分页读取
+    private static final String POS_SUFFIX = ":pos"; // 榜单的商家名次（Hash，merchantId -> sort）
+    private static final String REPLICA_SUFFIX = ":r"; // 热点榜单的副本：缓存key:r0 ~ 缓存key:r{REPLICA_COUNT-1}
+    private static final String MERCHANT_INDEX = "merchants"; // 每个版本的商家索引（Hash，merchantId -> 所在榜单和名次）
+    private static final String REGISTRY_PREFIX = "rank:boards:"; // 每天有缓存的榜单登记（Set，成员是cityId:type:category）
+    private static final String WATERMARK_PREFIX = "rank:watermark:"; // 每天已发布数据的水位（Hash，field是榜单标识）
+    private static final String DAY_WATERMARK_FIELD = "*"; // 整天数据的水位
+    private static final String VERSION_PREFIX = "rank:version:"; // 每天当前的数据版本号（读取时按这个版本拼key）
+    private static final String VERSION_SEQ_KEY = "rank:version:seq"; // 版本号生成器
+    private static final String HISTORY_PREFIX = "rank:h:"; // 之前某天的日榜：rank:h:cityId:type:category:date（不会再变）
+    private static final String DAY_SORT_PREFIX = "rank:sort:"; // 每天每个榜单最后发布的名次（Hash，merchantId -> sort），第二天算名次变化用
+    private static final String STALE_PREFIX = "rank:stale:"; // 每天12点重置时的数据版本号，不超过这个版本的榜单已逻辑过期
+    private static final String REFRESH_LOCK_PREFIX = "lock:rank:refresh:"; // 过期榜单后台刷新的节流标记
+    private static final String REFRESHED_SUFFIX = ":refreshed"; // 重置后已经后台刷新过的榜单：rank:stale:{date}:{过期版本号}:refreshed（Set）
 
     // 缓存时间
     private static final int CACHE_EXPIRE = 3600 * 6; // 6小时
     private static final int NULL_CACHE_EXPIRE = 300; // 空数据缓存5分钟（防穿透）
-    private static final int WAITING_EXPIRE = 60; // 等待状态缓存1分钟
     private static final int LOCK_EXPIRE = 10; // 分布式锁10秒（防击穿）
+    private static final int REFRESH_INTERVAL = 60; // 同一个过期榜单所有实例加起来每分钟最多后台刷新一次
+    private static final int REPLICA_EXPIRE = 60; // 热点榜单副本缓存1分钟（不再热了自然过期）
+    private static final int REGISTRY_EXPIRE = 86400 * 2; // 榜单登记保留2天
+    private static final int DAY_SORT_EXPIRE = 86400 * 2; // 每天的名次保留2天
+    private static final int HISTORY_EXPIRE = 86400 * 30; // 之前某天的日榜不会再变，缓存30天
+
+    // 发布新版本时每个pipeline写入的榜单个数
+    private static final int PUBLISH_BATCH_SIZE = 200;
+
+    // 只在新版本号比当前版本大的时候才切换，防止慢的发布覆盖快的发布
+    // 主实例令牌比见过的最大令牌小时拒绝（已经被新的主实例取代），返回-1
+    private static final DefaultRedisScript<Long> SWITCH_VERSION_SCRIPT = new DefaultRedisScript<>(
+            "local fence = tonumber(redis.call('GET', KEYS[2]) or '0') " +
+            "if tonumber(ARGV[3]) < fence then " +
+            "  return -1 " +
+            "end " +
+            "redis.call('SET', KEYS[2], ARGV[3]) " +
+            "local current = tonumber(redis.call('GET', KEYS[1]) or '0') " +
+            "if tonumber(ARGV[1]) > current then " +
+            "  redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[2]) " +
+            "  return 1 " +
+            "end " +
+            "return 0", Long.class);
+
+    // 12点重置：和版本切换一样先检查主实例令牌，再记录过期版本、清掉水位、设置重置标记（重置标记按JSON序列化）
+    private static final DefaultRedisScript<Long> RESET_SCRIPT = new DefaultRedisScript<>(
+            "local fence = tonumber(redis.call('GET', KEYS[4]) or '0') " +
+            "if tonumber(ARGV[3]) < fence then " +
+            "  return -1 " +
+            "end " +
+            "redis.call('SET', KEYS[4], ARGV[3]) " +
+            "redis.call('SET', KEYS[1], ARGV[1], 'EX', ARGV[2]) " +
+            "redis.call('DEL', KEYS[2]) " +
+            "redis.call('SET', KEYS[3], cjson.encode('cleared'), 'EX', ARGV[2]) " +
+            "return 1", Long.class);
+
+    // 把一个榜单的名次写入商家索引：先去掉这个榜单上原来的名次（KEYS[2]是原来的商家名次），再写入新名次
+    // 索引的值是JSON字符串：cityId:type:category=sort;cityId:type:category=sort
+    private static final DefaultRedisScript<Long> INDEX_BOARD_SCRIPT = new DefaultRedisScript<>(
+            "local prefix = ARGV[1] .. '=' " +
+            "local affected = {} " +
+            "for i = 3, #ARGV, 2 do affected[ARGV[i]] = ARGV[i + 1] end " +
+            "for _, merchant in ipairs(redis.call('HKEYS', KEYS[2])) do " +
+            "  if affected[merchant] == nil then affected[merchant] = false end " +
+            "end " +
+            "for merchant, sort in pairs(affected) do " +
+            "  local kept = {} " +
+            "  local current = redis.call('HGET', KEYS[1], merchant) " +
+            "  if current then " +
+            "    for item in string.gmatch(cjson.decode(current), '[^;]+') do " +
+            "      if string.sub(item, 1, #prefix) ~= prefix then table.insert(kept, item) end " +
+            "    end " +
+            "  end " +
+            "  if sort then table.insert(kept, prefix .. sort) end " +
+            "  if #kept == 0 then " +
+            "    redis.call('HDEL', KEYS[1], merchant) " +
+            "  else " +
+            "    redis.call('HSET', KEYS[1], merchant, cjson.encode(table.concat(kept, ';'))) " +
+            "  end " +
+            "end " +
+            "redis.call('EXPIRE', KEYS[1], ARGV[2]) " +
+            "return 1", Long.class);
+
+    // 变化的榜单超过这个比例时，直接按天查全部数据，否则按榜单逐个查
+    private static final double FULL_RELOAD_RATIO = 0.3;
+
+    // 等待时间（毫秒）
+    private static final long LOAD_WAIT_MILLIS = 3000; // 本实例内等待同一个榜单加载结果
+    private static final long PUBLISH_WAIT_MILLIS = 2000; // 没抢到分布式锁时，等待其他实例写入缓存
+
+    // 热点榜单的副本个数，副本key不同，在集群里会分到不同的节点上
+    private static final int REPLICA_COUNT = 4;
+
+    // Redis连续失败多少次后熔断，熔断多久后再试探
+    private static final int REDIS_FAILURE_THRESHOLD = 5;
+    private static final long REDIS_OPEN_MILLIS = 5000;
+    private static final String REDIS_OPEN_MESSAGE = "Redis熔断中";
+
+    // 最多能查询多少天以前的日榜
+    private static final int MAX_HISTORY_DAYS = 90;
+
+    // 分页查询每页最多条数
+    private static final int MAX_PAGE_SIZE = 500;
+
+    // 批量查询一次最多的榜单个数
+    public static final int MAX_BATCH_SIZE = 20;
+
+    // 同一个榜单在本实例内只有一个线程去抢分布式锁、查数据库
+    private final SingleFlight<List<MerchantRankInfo>> boardLoads = new SingleFlight<>();
+
+    // 相同的一组未命中榜单在本实例内只查一次数据库
+    private final SingleFlight<Map<String, List<MerchantRankInfo>>> batchLoads = new SingleFlight<>();
+
+    // Redis熔断：Redis出问题时不再每个请求都等到超时，直接降级
+    private final CircuitBreaker redisBreaker = new CircuitBreaker(REDIS_FAILURE_THRESHOLD, REDIS_OPEN_MILLIS);
+
+    // 过期榜单的后台刷新，线程和队列都有上限，队列满了直接丢弃（下次查询还会再触发）
+    private final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(256), runnable -> {
+                Thread thread = new Thread(runnable, "rank-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    // 异步查询时缓存未命中的加载（请求合并、分布式锁、查数据库都是阻塞的），队列满了直接返回空列表
+    private static final int LOAD_THREADS = 16;
+    private final ThreadPoolExecutor loadExecutor = new ThreadPoolExecutor(LOAD_THREADS, LOAD_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1000), runnable -> {
+                Thread thread = new Thread(runnable, "rank-load");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+
+    // 写本地快照，同时最多一个在写、一个在排队（连续多次发布只写最新的）
+    private final ThreadPoolExecutor snapshotExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), runnable -> {
+                Thread thread = new Thread(runnable, "rank-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    // 本实例已经提交过后台刷新的榜单 -> 下次允许提交的时间
+    private final ConcurrentHashMap<String, Long> refreshNotBefore = new ConcurrentHashMap<>();
 
     // 使用北京时间
     private static final ZoneId BEIJING_ZONE = ZoneId.of("Asia/Shanghai");
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+        loadExecutor.shutdownNow();
+        snapshotExecutor.shutdownNow();
+    }
 
     /**
      * 获取排行榜数据
-     * 1. 先查Redis缓存
+     * 1. 先查本地缓存，再查Redis缓存
      * 2. Redis没有则查数据库
      * 3. 防止缓存穿透：空结果也缓存
      * 4. 防止缓存击穿：使用分布式锁
      */
     public List<MerchantRankInfo> getRank(RankQueryDTO dto) {
-        System.out.println("开始查询排行榜：" + dto);
+        // 周榜、月榜从Redis里的周期聚合读取
+        if (RankCycleAggregator.isCycle(dto.getRankCycle())) {
+            return getCycleRank(dto);
+        }
+        // 之前某天的日榜
+        if (isHistory(dto)) {
+            return getHistoryRank(dto);
+        }
 
-        // 生成缓存key
-        String cacheKey = generateCacheKey(dto);
+        // 生成缓存key，并记录访问次数（识别热点榜单）；版本号读不到时降级
+        String cacheKey;
+        try {
+            cacheKey = generateCacheKey(dto);
+        } catch (DataAccessException e) {
+            logRedisError("读取数据版本号出错", e);
+            return redisUnavailable(dto);
+        }
+        String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+        hotBoardTracker.record(boardId);
+
+        // 0. 先查本地缓存，命中就不用访问Redis
+        List<MerchantRankInfo> localData = localRankCache.get(cacheKey);
+        if (localData != null) {
+            rankMetrics.localHit();
+            refreshIfStale(dto, cacheKey, localData);
+            return localData;
+        }
+
+        log.debug("开始查询排行榜：{}", dto);
 
         try {
-            // 1. 先查Redis
-            Object cachedData = redisTemplate.opsForValue().get(cacheKey);
+            // 1. 先查Redis（热点榜单读副本），读取期间本地缓存失效过的读到的可能是旧数据，不放入本地缓存
+            long generation = localRankCache.generation();
+            Object cachedData;
+            try {
+                cachedData = redis(() -> readCachedValue(boardId, cacheKey));
+            } catch (DataAccessException e) {
+                // Redis出错或熔断中，降级：优先返回最近的数据，没有再查数据库
+                logRedisError("查询出错", e);
+                return redisUnavailable(dto);
+            }
 
             if (cachedData != null) {
-                System.out.println("从Redis找到缓存数据");
-
                 if (CACHE_NULL.equals(cachedData)) {
                     // 数据是空的（防止缓存穿透）
-                    System.out.println("缓存的是空数据标记，返回空列表");
+                    rankMetrics.nullMarker();
+                    log.debug("缓存的是空数据标记，返回空列表：{}", cacheKey);
                     return new ArrayList<>();
                 }
 
                 if (CACHE_WAITING.equals(cachedData)) {
                     // 数据还在等待更新
-                    System.out.println("数据还在等待更新，返回空列表");
+                    rankMetrics.waitingMarker();
+                    log.debug("数据还在等待更新，返回空列表：{}", cacheKey);
                     return new ArrayList<>();
                 }
 
-                // 正常数据
-                System.out.println("返回缓存数据");
-                return (List<MerchantRankInfo>) cachedData;
+                // 正常数据，同时放入本地缓存；已过期的照常返回，后台去刷新
+                rankMetrics.redisHit();
+                List<MerchantRankInfo> board = localRankCache.put(cacheKey, (List<MerchantRankInfo>) cachedData, generation);
+                rankFallback.remember(queryDate(dto), boardId, board);
+                refreshIfStale(dto, cacheKey, board);
+                return board;
             }
 
-            System.out.println("Redis没有缓存，准备查询数据库");
+            rankMetrics.redisMiss();
+            log.debug("Redis没有缓存，准备查询数据库：{}", cacheKey);
 
             // 2. Redis没有，需要查询数据库
             // 使用分布式锁防止缓存击穿（多个请求同时查询数据库）
             return getDataWithLock(dto, cacheKey);
 
         } catch (Exception e) {
-            System.err.println("查询出错：" + e.getMessage());
-            // 出错时降级到直接查数据库
-            return getFromDatabaseDirectly(dto);
+            log.error("查询出错：{}", e.getMessage());
+            // 出错时降级：优先返回最近的数据，没有再查数据库
+            return redisUnavailable(dto);
         }
     }
 
     /**
-     * 使用分布式锁获取数据（防止缓存击穿）
+     * 获取周榜或月榜（发布日榜时增量聚合好的，聚合不存在时在Redis里合并一次，不查数据库）
+     * Redis出错或熔断时返回最近成功读到的周期榜单，没有返回空列表
      */
-    private List<MerchantRankInfo> getDataWithLock(RankQueryDTO dto, String cacheKey) {
-        String lockKey = LOCK_PREFIX + cacheKey;
-        boolean gotLock = false;
+    private List<MerchantRankInfo> getCycleRank(RankQueryDTO dto) {
+        String cacheKey = generateCacheKey(dto);
+        List<MerchantRankInfo> localData = localRankCache.get(cacheKey);
+        if (localData != null) {
+            rankMetrics.localHit();
+            return localData;
+        }
 
+        String date = queryDate(dto);
+        String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+        // 周期榜单和日榜分开保存最近的数据
+        String fallbackId = "c" + dto.getRankCycle() + ":" + boardId;
         try {
-            // 尝试获取分布式锁
-            gotLock = tryGetLock(lockKey);
-
-            if (gotLock) {
-                System.out.println("获得分布式锁，查询数据库");
-                return queryDatabaseAndCache(dto, cacheKey);
-            } else {
-                // 没有获取到锁，说明有其他线程正在查询
-                System.out.println("没有获得锁，等待后重试缓存");
-
-                // 等待100毫秒，让获得锁的线程完成查询
-                Thread.sleep(100);
-
-                // 再次尝试从缓存获取
-                Object cachedData = redisTemplate.opsForValue().get(cacheKey);
-                if (cachedData != null && !CACHE_NULL.equals(cachedData) && !CACHE_WAITING.equals(cachedData)) {
-                    System.out.println("重试后从缓存获取到数据");
-                    return (List<MerchantRankInfo>) cachedData;
-                }
+            long generation = localRankCache.generation();
+            List<MerchantRankInfo> board = redis(() -> rankCycleAggregator.readBoard(dto, boardId, date));
+            rankMetrics.redisHit();
+            board = localRankCache.put(cacheKey, board, generation);
+            rankFallback.remember(date, fallbackId, board);
+            return board;
+        } catch (DataAccessException e) {
+            logRedisError("查询周期榜单出错", e);
+            return rankFallback.lastGoodOrEmpty(date, fallbackId);
+        } catch (Exception e) {
+            log.error("查询周期榜单出错：{}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
 
-                // 还是没有，返回空列表
-                System.out.println("重试后缓存依然没有，返回空列表");
+    /**
+     * 获取之前某天的日榜
+     * 1. 数据不会再变，缓存30天，不用版本号，也不用过期刷新
+     * 2. 查询很少，本实例内合并加载就够了，不加分布式锁
+     */
+    private List<MerchantRankInfo> getHistoryRank(RankQueryDTO dto) {
+        String cacheKey = generateCacheKey(dto);
+        List<MerchantRankInfo> localData = localRankCache.get(cacheKey);
+        if (localData != null) {
+            rankMetrics.localHit();
+            return localData;
+        }
+        try {
+            Object cachedData;
+            try {
+                cachedData = redis(() -> rankMetrics.timeRedisGet(() -> redisTemplate.opsForValue().get(cacheKey)));
+            } catch (DataAccessException e) {
+                logRedisError("查询历史榜单出错", e);
+                return getFromDatabaseDirectly(dto);
+            }
+            if (CACHE_NULL.equals(cachedData)) {
+                rankMetrics.nullMarker();
                 return new ArrayList<>();
             }
-
+            if (cachedData instanceof List<?>) {
+                rankMetrics.redisHit();
+                return localRankCache.put(cacheKey, (List<MerchantRankInfo>) cachedData);
+            }
+            rankMetrics.redisMiss();
+            return boardLoads.execute(cacheKey, () -> loadHistory(dto, cacheKey), LOAD_WAIT_MILLIS);
+        } catch (TimeoutException e) {
+            log.warn("等待加载结果超时：{}", cacheKey);
+            return new ArrayList<>();
         } catch (Exception e) {
-            System.err.println("获取数据时出错：" + e.getMessage());
+            log.error("查询历史榜单出错：{}", e.getMessage());
+            return getFromDatabaseDirectly(dto);
+        }
+    }
+
+    /**
+     * 从数据库加载之前某天的日榜，算好名次变化后缓存
+     */
+    private List<MerchantRankInfo> loadHistory(RankQueryDTO dto, String cacheKey) {
+        String date = dto.getDate();
+        String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+        List<MerchantRankInfo> board = rankMetrics.timeQuery("selectByConditions",
+                () -> merchantRankInfoMapper.selectByConditions(date, dto.getCityId(), dto.getType(), dto.getCategory()));
+        if (board == null || board.isEmpty()) {
+            redis(() -> {
+                redisTemplate.opsForValue().set(cacheKey, CACHE_NULL, NULL_CACHE_EXPIRE, TimeUnit.SECONDS);
+                return null;
+            });
             return new ArrayList<>();
-        } finally {
-            // 释放锁
-            if (gotLock) {
-                releaseLock(lockKey);
-            }
         }
+
+        // 前一天的名次Redis里已经没有时查数据库
+        Map<Object, Object> previousSorts = redis(() -> redisTemplate.opsForHash().entries(daySortKey(boardId, previousDay(date))));
+        if (previousSorts.isEmpty()) {
+            List<MerchantRankInfo> previous = rankMetrics.timeQuery("selectByConditions", () -> merchantRankInfoMapper
+                    .selectByConditions(previousDay(date), dto.getCityId(), dto.getType(), dto.getCategory()));
+            previousSorts = new HashMap<>(positionsOf(previous));
+        }
+        applyMovement(board, previousSorts);
+
+        redis(() -> {
+            redisTemplate.opsForValue().set(cacheKey, board, HISTORY_EXPIRE, TimeUnit.SECONDS);
+            return null;
+        });
+        return localRankCache.put(cacheKey, board);
     }
 
     /**
-     * 查询数据库并缓存结果
+     * 分页获取排行榜数据
+     * 1. 本地缓存有整个榜单时直接截取
+     * 2. 否则从Redis的有序集合里按名次范围读取，只传输这一页的数据
+     * 3. 有序集合没有时走完整查询再截取
      */
-    private List<MerchantRankInfo> queryDatabaseAndCache(RankQueryDTO dto, String cacheKey) {
-        try {
-            String today = getTodayDate();
-            System.out.println("查询数据库，日期：" + today);
+    public List<MerchantRankInfo> getRankPage(RankQueryDTO dto) {
+        int offset = pageOffset(dto);
+        int limit = pageLimit(dto);
+        if (RankCycleAggregator.isCycle(dto.getRankCycle()) || isHistory(dto)) {
+            return slice(getRank(dto), offset, limit);
+        }
 
-            List<MerchantRankInfo> result = merchantRankInfoMapper.selectByConditions(
-                    today, dto.getCityId(), dto.getType(), dto.getCategory());
+        String cacheKey;
+        try {
+            cacheKey = generateCacheKey(dto);
+        } catch (DataAccessException e) {
+            // 版本号读不到，走完整查询的降级
+            return slice(getRank(dto), offset, limit);
+        }
+        List<MerchantRankInfo> localData = localRankCache.get(cacheKey);
+        if (localData != null) {
+            rankMetrics.localHit();
+            refreshIfStale(dto, cacheKey, localData);
+            return slice(localData, offset, limit);
+        }
 
-            if (result == null || result.isEmpty()) {
-                System.out.println("数据库也没有数据，缓存NULL标记（防穿透）");
-                // 数据库也没有数据，缓存NULL标记，防止缓存穿透
-                redisTemplate.opsForValue().set(cacheKey, CACHE_NULL, NULL_CACHE_EXPIRE, TimeUnit.SECONDS);
-                return new ArrayList<>();
+        try {
+            Set<Object> members = redis(() -> redisTemplate.opsForZSet().range(cacheKey + ZSET_SUFFIX, offset, offset + limit - 1));
+            if (members != null && !members.isEmpty()) {
+                List<MerchantRankInfo> page = new ArrayList<>(members.size());
+                for (Object member : members) {
+                    page.add((MerchantRankInfo) member);
+                }
+                rankMetrics.redisHit();
+                refreshIfStale(dto, cacheKey, null);
+                return page;
             }
+        } catch (DataAccessException e) {
+            logRedisError("分页查询出错", e);
+        }
 
-            System.out.println("从数据库查到" + result.size() + "条数据，存入Redis");
-            // 有数据，存入Redis
-            redisTemplate.opsForValue().set(cacheKey, result, CACHE_EXPIRE, TimeUnit.SECONDS);
+        // 有序集合里没有（榜单为空、等待更新或者还没加载），走完整查询
+        return slice(getRank(dto), offset, limit);
+    }
 
-            return result;
+    /**
+     * 异步获取排行榜数据，等待Redis期间不占用线程
+     * 1. 本地缓存命中直接返回
+     * 2. 用响应式的Lettuce命令读取Redis
+     * 3. 缓存未命中时在加载线程池里走原来的加载流程（请求合并、分布式锁、查数据库）
+     * 注意：Redis返回后的回调在Lettuce的IO线程上执行，回调里不能有阻塞操作
+     */
+    public CompletableFuture<List<MerchantRankInfo>> getRankAsync(RankQueryDTO dto) {
+        if (RankCycleAggregator.isCycle(dto.getRankCycle()) || isHistory(dto)) {
+            List<MerchantRankInfo> localData = localRankCache.get(generateCacheKey(dto));
+            return localData != null ? CompletableFuture.completedFuture(localData) : loadAsync(() -> getRank(dto));
+        }
 
-        } catch (Exception e) {
-            System.err.println("查询数据库出错：" + e.getMessage());
-            return new ArrayList<>();
+        // 版本号和过期版本号本地缓存没有时用响应式命令读，不占用调用线程
+        return boardCacheKeyAsync(dto)
+                .thenCompose(cacheKey -> isStaleAsync(getTodayDate())
+                        .thenCompose(stale -> getRankAsync(dto, cacheKey, stale)))
+                .exceptionallyCompose(e -> {
+                    logRedisError("读取数据版本号出错", e);
+                    return loadAsync(() -> redisUnavailable(dto));
+                });
+    }
+
+    private CompletableFuture<List<MerchantRankInfo>> getRankAsync(RankQueryDTO dto, String cacheKey, boolean stale) {
+        String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+        hotBoardTracker.record(boardId);
+
+        List<MerchantRankInfo> localData = localRankCache.get(cacheKey);
+        if (localData != null) {
+            rankMetrics.localHit();
+            if (stale) {
+                submitRefresh(dto, cacheKey, localData);
+            }
+            return CompletableFuture.completedFuture(localData);
         }
+
+        long start = System.nanoTime();
+        long generation = localRankCache.generation();
+        return redisAsync(() -> hotBoardTracker.isHot(boardId)
+                        ? readReplicaAsync(cacheKey)
+                        : reactiveRedisTemplate.opsForValue().get(cacheKey))
+                .thenCompose(cachedData -> {
+                    rankMetrics.recordRedisGet(start);
+                    if (cachedData == null) {
+                        rankMetrics.redisMiss();
+                        return loadAsync(() -> getDataWithLock(dto, cacheKey));
+                    }
+                    if (CACHE_NULL.equals(cachedData) || CACHE_WAITING.equals(cachedData)) {
+                        if (CACHE_NULL.equals(cachedData)) {
+                            rankMetrics.nullMarker();
+                        } else {
+                            rankMetrics.waitingMarker();
+                        }
+                        return CompletableFuture.completedFuture(new ArrayList<>());
+                    }
+
+                    rankMetrics.redisHit();
+                    List<MerchantRankInfo> board = localRankCache.put(cacheKey, (List<MerchantRankInfo>) cachedData, generation);
+                    rankFallback.remember(queryDate(dto), boardId, board);
+                    if (stale) {
+                        submitRefresh(dto, cacheKey, board);
+                    }
+                    return CompletableFuture.completedFuture(board);
+                })
+                .exceptionallyCompose(e -> {
+                    logRedisError("异步查询出错", e);
+                    return loadAsync(() -> redisUnavailable(dto));
+                });
     }
 
     /**
-     * 尝试获取分布式锁
+     * 异步分页获取排行榜数据，从Redis的有序集合里按名次范围读取
      */
-    private boolean tryGetLock(String lockKey) {
-        try {
-            // 使用setIfAbsent实现分布式锁（setnx命令）
-            Boolean success = redisTemplate.opsForValue().setIfAbsent(
-                    lockKey,
-                    "locked",
-                    LOCK_EXPIRE,
-                    TimeUnit.SECONDS
-            );
-            return success != null && success;
-        } catch (Exception e) {
-            System.err.println("获取锁失败：" + e.getMessage());
-            return false;
+    public CompletableFuture<List<MerchantRankInfo>> getRankPageAsync(RankQueryDTO dto) {
+        int offset = pageOffset(dto);
+        int limit = pageLimit(dto);
+        if (RankCycleAggregator.isCycle(dto.getRankCycle()) || isHistory(dto)) {
+            return getRankAsync(dto).thenApply(board -> slice(board, offset, limit));
         }
+
+        return boardCacheKeyAsync(dto)
+                .thenCompose(cacheKey -> isStaleAsync(getTodayDate())
+                        .thenCompose(stale -> getRankPageAsync(dto, cacheKey, stale, offset, limit)))
+                .exceptionallyCompose(e -> getRankAsync(dto).thenApply(board -> slice(board, offset, limit)));
+    }
+
+    private CompletableFuture<List<MerchantRankInfo>> getRankPageAsync(RankQueryDTO dto, String cacheKey, boolean stale,
+                                                                        int offset, int limit) {
+        List<MerchantRankInfo> localData = localRankCache.get(cacheKey);
+        if (localData != null) {
+            rankMetrics.localHit();
+            if (stale) {
+                submitRefresh(dto, cacheKey, localData);
+            }
+            return CompletableFuture.completedFuture(slice(localData, offset, limit));
+        }
+
+        return redisAsync(() -> reactiveRedisTemplate.opsForZSet()
+                        .range(cacheKey + ZSET_SUFFIX, Range.closed((long) offset, (long) offset + limit - 1))
+                        .collectList())
+                .thenCompose(members -> {
+                    if (members.isEmpty()) {
+                        // 有序集合里没有，走完整查询再截取
+                        return getRankAsync(dto).thenApply(board -> slice(board, offset, limit));
+                    }
+                    rankMetrics.redisHit();
+                    if (stale) {
+                        submitRefresh(dto, cacheKey, null);
+                    }
+                    List<MerchantRankInfo> page = new ArrayList<>(members.size());
+                    for (Object member : members) {
+                        page.add((MerchantRankInfo) member);
+                    }
+                    return CompletableFuture.completedFuture(page);
+                })
+                .exceptionallyCompose(e -> {
+                    logRedisError("异步分页查询出错", e);
+                    return getRankAsync(dto).thenApply(board -> slice(board, offset, limit));
+                });
     }
 
     /**
-     * 释放分布式锁
+     * 今天的日榜是否可能存在（布隆过滤器判断），返回false时一定不存在，不用再查Redis和数据库
+     * 周榜、月榜包含之前几天的榜单，之前某天的日榜也没有过滤器，不做判断
      */
-    private void releaseLock(String lockKey) {
-        try {
-            redisTemplate.delete(lockKey);
-            System.out.println("释放锁：" + lockKey);
-        } catch (Exception e) {
-            System.err.println("释放锁失败：" + e.getMessage());
+    public boolean mightExist(RankQueryDTO dto) {
+        if (RankCycleAggregator.isCycle(dto.getRankCycle()) || isHistory(dto)) {
+            return true;
         }
+        return rankAdmissionFilter.mightExist(getTodayDate(),
+                boardId(dto.getCityId(), dto.getType(), dto.getCategory()));
     }
 
     /**
-     * 每天12点执行
-     * 1. 设置重置标记
-     * 2. 将所有现有缓存标记为WAITING状态
+     * 读取榜单缓存，热点榜单随机读一个副本，副本没有时读主key并补写副本
      */
-    @Scheduled(cron = "0 0 12 * * ?")
-    public void resetAtNoon() {
-        System.out.println("[" + LocalDateTime.now(BEIJING_ZONE) + "] 中午12点，重置排行榜");
+    private Object readCachedValue(String boardId, String cacheKey) {
+        if (!hotBoardTracker.isHot(boardId)) {
+            return rankMetrics.timeRedisGet(() -> redisTemplate.opsForValue().get(cacheKey));
+        }
 
-        try {
-            // 获取今天的日期
-            String today = getTodayDate();
+        String replicaKey = randomReplicaKey(cacheKey);
+        Object cachedData = rankMetrics.timeRedisGet(() -> redisTemplate.opsForValue().get(replicaKey));
+        if (cachedData != null) {
+            return cachedData;
+        }
+        cachedData = rankMetrics.timeRedisGet(() -> redisTemplate.opsForValue().get(cacheKey));
+        if (cachedData instanceof List<?> board) {
+            writeReplicas(cacheKey, board);
+        }
+        return cachedData;
+    }
 
-            // 查找所有排行榜缓存
-            Set<String> cacheKeys = redisTemplate.keys(CACHE_PREFIX + "*");
-            if (cacheKeys != null && !cacheKeys.isEmpty()) {
-                // 将所有缓存标记为WAITING状态
-                for (String key : cacheKeys) {
-                    // 只处理今天的数据
-                    if (key.contains(today)) {
-                        redisTemplate.opsForValue().set(key, CACHE_WAITING, WAITING_EXPIRE, TimeUnit.SECONDS);
+    /**
+     * 用一次pipeline写入热点榜单的副本（已经有的不覆盖）
+     */
+    private void writeReplicas(String cacheKey, Object board) {
+        try {
+            redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                    RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                    for (String replicaKey : replicaKeys(cacheKey)) {
+                        ops.opsForValue().setIfAbsent(replicaKey, board, REPLICA_EXPIRE, TimeUnit.SECONDS);
                     }
+                    return null;
                 }
-                System.out.println("已将" + cacheKeys.size() + "个缓存标记为等待状态");
-            }
+            });
+        } catch (Exception e) {
+            log.warn("写入热点榜单副本失败：{}", e.getMessage());
+        }
+    }
 
-            // 设置重置标记
-            redisTemplate.opsForValue().set("rank:reset:" + today, "cleared", 86400, TimeUnit.SECONDS);
+    /**
+     * 异步读取热点榜单：随机读一个副本，副本没有时读主key并在后台补写副本
+     */
+    private Mono<Object> readReplicaAsync(String cacheKey) {
+        return reactiveRedisTemplate.opsForValue().get(randomReplicaKey(cacheKey))
+                .switchIfEmpty(Mono.defer(() -> reactiveRedisTemplate.opsForValue().get(cacheKey)
+                        .doOnNext(cachedData -> {
+                            if (cachedData instanceof List<?>) {
+                                Flux.fromIterable(replicaKeys(cacheKey))
+                                        .flatMap(replicaKey -> reactiveRedisTemplate.opsForValue()
+                                                .setIfAbsent(replicaKey, cachedData, Duration.ofSeconds(REPLICA_EXPIRE)))
+                                        .subscribe(null, e -> log.warn("写入热点榜单副本失败：{}", e.getMessage()));
+                            }
+                        })));
+    }
 
-            System.out.println("12点重置完成");
+    private static String randomReplicaKey(String cacheKey) {
+        return cacheKey + REPLICA_SUFFIX + ThreadLocalRandom.current().nextInt(REPLICA_COUNT);
+    }
 
-        } catch (Exception e) {
-            System.err.println("重置出错：" + e.getMessage());
+    private static List<String> replicaKeys(String cacheKey) {
+        List<String> keys = new ArrayList<>(REPLICA_COUNT);
+        for (int i = 0; i < REPLICA_COUNT; i++) {
+            keys.add(cacheKey + REPLICA_SUFFIX + i);
         }
+        return keys;
     }
 
     /**
-     * 每分钟检查一次
-     * 1. 检查是否已到12点后且需要更新数据
-     * 2. 检查数据仓库是否有新数据
+     * 在加载线程池里执行阻塞的加载，线程池满了返回空列表（削峰，不再排队）
      */
-    @Scheduled(fixedRate = 60000)
-    public void checkEveryMinute() {
-        System.out.println("[" + LocalDateTime.now(BEIJING_ZONE) + "] 每分钟检查任务开始");
-
+    private CompletableFuture<List<MerchantRankInfo>> loadAsync(Supplier<List<MerchantRankInfo>> loader) {
         try {
-            // 检查今天是否已经过了12点
-            LocalDateTime now = LocalDateTime.now(BEIJING_ZONE);
-            if (now.getHour() < 12) {
-                // 还没到12点，不用检查
-                System.out.println("还没到12点，跳过检查");
-                return;
-            }
+            return CompletableFuture.supplyAsync(loader, loadExecutor);
+        } catch (RejectedExecutionException e) {
+            log.warn("加载线程池已满，返回空列表");
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+    }
 
-            // 检查今天是否已经重置过
-            String today = getTodayDate();
-            Object resetFlag = redisTemplate.opsForValue().get("rank:reset:" + today);
+    private static int pageOffset(RankQueryDTO dto) {
+        return dto.getOffset() == null ? 0 : Math.max(0, dto.getOffset());
+    }
 
-            if (resetFlag == null) {
-                // 今天还没重置过，说明还没到12点或者重置失败了
-                System.out.println("今天还没重置过，跳过检查");
-                return;
-            }
+    private static int pageLimit(RankQueryDTO dto) {
+        return dto.getLimit() == null ? MAX_PAGE_SIZE : Math.min(Math.max(1, dto.getLimit()), MAX_PAGE_SIZE);
+    }
 
-            System.out.println("今天已重置，开始检查数据仓库");
+    private static List<MerchantRankInfo> slice(List<MerchantRankInfo> board, int offset, int limit) {
+        if (offset >= board.size()) {
+            return new ArrayList<>();
+        }
+        return board.subList(offset, Math.min(board.size(), offset + limit));
+    }
 
-            // 检查数据仓库是否有今天的数据
-            List<MerchantRankInfo> allData = merchantRankInfoMapper.selectByDate(today);
+    /**
+     * 批量获取多个排行榜
+     * 1. 先查本地缓存
+     * 2. 剩下的用一次MGET从Redis读取
+     * 3. Redis也没有的用一次数据库查询全部加载，再用pipeline写入缓存
+     * @return 和参数顺序一致的榜单列表
+     */
+    public List<List<MerchantRankInfo>> getRanks(List<RankQueryDTO> dtos) {
+        List<List<MerchantRankInfo>> results = new ArrayList<>(Collections.nCopies(dtos.size(), null));
+        List<Integer> remaining = new ArrayList<>();
+        List<String> cacheKeys = new ArrayList<>(dtos.size());
 
-            if (allData == null || allData.isEmpty()) {
-                System.out.println("数据仓库还没有今天的数据");
-                return;
+        // 1. 本地缓存（周榜、月榜单独读取）
+        for (int i = 0; i < dtos.size(); i++) {
+            String cacheKey;
+            try {
+                cacheKey = generateCacheKey(dtos.get(i));
+            } catch (DataAccessException e) {
+                cacheKey = null;
+            }
+            cacheKeys.add(cacheKey);
+            // 周榜、月榜、之前某天的日榜，以及版本号读不到的（单个查询里降级）
+            if (cacheKey == null || RankCycleAggregator.isCycle(dtos.get(i).getRankCycle()) || isHistory(dtos.get(i))) {
+                results.set(i, getRank(dtos.get(i)));
+                continue;
+            }
+            hotBoardTracker.record(boardId(dtos.get(i).getCityId(), dtos.get(i).getType(), dtos.get(i).getCategory()));
+            List<MerchantRankInfo> localData = localRankCache.get(cacheKey);
+            if (localData != null) {
+                rankMetrics.localHit();
+                results.set(i, localData);
+            } else {
+                remaining.add(i);
             }
+        }
+        if (remaining.isEmpty()) {
+            return pageAll(dtos, results);
+        }
 
-            System.out.println("数据仓库已有数据，共" + allData.size() + "条，开始更新缓存");
+        try {
+            // 2. 一次MGET读取剩下的榜单
+            long generation = localRankCache.generation();
+            List<Object> cachedData = redis(() -> redisTemplate.opsForValue().multiGet(
+                    remaining.stream().map(cacheKeys::get).toList()));
 
-            // 数据已准备好，更新到Redis
-            updateCacheWithNewData(allData, today);
+            Map<String, RankQueryDTO> missed = new LinkedHashMap<>();
+            for (int j = 0; j < remaining.size(); j++) {
+                int i = remaining.get(j);
+                Object data = cachedData == null ? null : cachedData.get(j);
+                if (data == null) {
+                    rankMetrics.redisMiss();
+                    missed.putIfAbsent(cacheKeys.get(i), dtos.get(i));
+                } else if (CACHE_NULL.equals(data) || CACHE_WAITING.equals(data)) {
+                    if (CACHE_NULL.equals(data)) {
+                        rankMetrics.nullMarker();
+                    } else {
+                        rankMetrics.waitingMarker();
+                    }
+                    results.set(i, new ArrayList<>());
+                } else {
+                    rankMetrics.redisHit();
+                    results.set(i, localRankCache.put(cacheKeys.get(i), (List<MerchantRankInfo>) data, generation));
+                    rankFallback.remember(queryDate(dtos.get(i)), boardId(dtos.get(i).getCityId(),
+                            dtos.get(i).getType(), dtos.get(i).getCategory()), results.get(i));
+                    refreshIfStale(dtos.get(i), cacheKeys.get(i), results.get(i));
+                }
+            }
 
+            // 3. 未命中的榜单一次查询数据库
+            if (!missed.isEmpty()) {
+                String batchKey = String.join(",", new TreeSet<>(missed.keySet()));
+                Map<String, List<MerchantRankInfo>> loaded =
+                        batchLoads.execute(batchKey, () -> queryBoardsAndCache(missed), LOAD_WAIT_MILLIS);
+                for (int i : remaining) {
+                    if (results.get(i) == null) {
+                        results.set(i, loaded.getOrDefault(cacheKeys.get(i), new ArrayList<>()));
+                    }
+                }
+            }
         } catch (Exception e) {
-            System.err.println("检查任务出错：" + e.getMessage());
+            logRedisError("批量查询出错", e);
+            // 出错时逐个查询（每个都有自己的降级处理）
+            for (int i : remaining) {
+                if (results.get(i) == null) {
+                    results.set(i, getRank(dtos.get(i)));
+                }
+            }
         }
+        return pageAll(dtos, results);
     }
 
     /**
-     * 用新数据更新缓存
+     * 带了分页参数的按分页截取
      */
-    private void updateCacheWithNewData(List<MerchantRankInfo> allData, String date) {
-        try {
-            // 按条件分组
-            Map<String, List<MerchantRankInfo>> groupedData = new HashMap<>();
-
-            for (MerchantRankInfo item : allData) {
-                String key = item.getCityId() + ":" + item.getType() + ":" + item.getCategory();
-                if (!groupedData.containsKey(key)) {
-                    groupedData.put(key, new ArrayList<>());
-                }
-                groupedData.get(key).add(item);
+    private static List<List<MerchantRankInfo>> pageAll(List<RankQueryDTO> dtos, List<List<MerchantRankInfo>> boards) {
+        for (int i = 0; i < dtos.size(); i++) {
+            RankQueryDTO dto = dtos.get(i);
+            if (dto.getOffset() != null || dto.getLimit() != null) {
+                boards.set(i, slice(boards.get(i), pageOffset(dto), pageLimit(dto)));
             }
+        }
+        return boards;
+    }
 
-            // 更新缓存（使用分布式锁防止并发问题）
-            int updatedCount = 0;
-            for (Map.Entry<String, List<MerchantRankInfo>> entry : groupedData.entrySet()) {
-                String cacheKey = CACHE_PREFIX + entry.getKey() + ":" + date;
-                String lockKey = LOCK_PREFIX + "update:" + cacheKey;
+    /**
+     * 一次查询多个榜单，写入缓存（没有数据的写NULL标记）
+     * @param missed 缓存key -> 查询参数
+     * @return 缓存key -> 榜单
+     */
+    private Map<String, List<MerchantRankInfo>> queryBoardsAndCache(Map<String, RankQueryDTO> missed) {
+        String today = getTodayDate();
+        List<MerchantRankInfo> rows = rankMetrics.timeQuery("selectByBoards",
+                () -> merchantRankInfoMapper.selectByBoards(today, new ArrayList<>(missed.values())));
+        log.debug("批量查询数据库：{}个榜单，共{}条数据", missed.size(), rows.size());
 
-                try {
-                    if (tryGetLock(lockKey)) {
-                        redisTemplate.opsForValue().set(cacheKey, entry.getValue(), CACHE_EXPIRE, TimeUnit.SECONDS);
-                        updatedCount++;
-                        releaseLock(lockKey);
+        // 按榜单分组，算好名次变化
+        Map<String, List<MerchantRankInfo>> byBoardId = groupByBoard(rows);
+        applyMovements(byBoardId, today);
+
+        // 查到的榜单写入商家索引
+        for (Map.Entry<String, RankQueryDTO> entry : missed.entrySet()) {
+            RankQueryDTO dto = entry.getValue();
+            String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+            if (byBoardId.containsKey(boardId)) {
+                indexBoard(entry.getKey(), boardId, byBoardId.get(boardId));
+            }
+        }
+
+        Map<String, List<MerchantRankInfo>> loaded = new HashMap<>();
+        List<String> foundBoardIds = new ArrayList<>();
+        redis(() -> redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                for (Map.Entry<String, RankQueryDTO> entry : missed.entrySet()) {
+                    RankQueryDTO dto = entry.getValue();
+                    String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+                    List<MerchantRankInfo> board = byBoardId.get(boardId);
+                    if (board == null) {
+                        // 没有数据，缓存NULL标记（防穿透）
+                        ops.opsForValue().set(entry.getKey(), CACHE_NULL, NULL_CACHE_EXPIRE, TimeUnit.SECONDS);
+                        loaded.put(entry.getKey(), new ArrayList<>());
+                    } else {
+                        writeBoard(ops, entry.getKey(), board);
+                        foundBoardIds.add(boardId);
+                        loaded.put(entry.getKey(), board);
                     }
-                } catch (Exception e) {
-                    System.err.println("更新缓存" + cacheKey + "时出错：" + e.getMessage());
                 }
+                return null;
             }
+        }));
 
-            System.out.println("成功更新了" + updatedCount + "个缓存");
+        if (!foundBoardIds.isEmpty()) {
+            registerBoards(today, foundBoardIds.toArray(new String[0]));
+            rankMetrics.boardsLoaded(foundBoardIds.size());
+        }
+        for (Map.Entry<String, List<MerchantRankInfo>> entry : loaded.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                entry.setValue(localRankCache.put(entry.getKey(), entry.getValue()));
+            }
+            rankCacheChannel.publishLoaded(entry.getKey());
+        }
+        return loaded;
+    }
 
-        } catch (Exception e) {
-            System.err.println("更新缓存出错：" + e.getMessage());
+    /**
+     * 获取缓存里没有的数据（防止缓存击穿）
+     * 本实例内相同的榜单合并成一次加载，其他请求等待同一个结果
+     */
+    private List<MerchantRankInfo> getDataWithLock(RankQueryDTO dto, String cacheKey) {
+        try {
+            return boardLoads.execute(cacheKey, () -> loadWithDistributedLock(dto, cacheKey), LOAD_WAIT_MILLIS);
+        } catch (TimeoutException e) {
+            // 等太久了，先看看缓存里有没有，没有再降级查数据库
+            log.warn("等待加载结果超时：{}", cacheKey);
+            List<MerchantRankInfo> cached = getBoardFromRedis(cacheKey);
+            return cached != null ? cached : getFromDatabaseDirectly(dto);
         }
     }
 
     /**
-     * 直接查询数据库（降级方法）
+     * 使用分布式锁加载数据，只有抢到锁的实例查数据库
      */
-    private List<MerchantRankInfo> getFromDatabaseDirectly(RankQueryDTO dto) {
-        System.out.println("降级：直接查询数据库");
+    private List<MerchantRankInfo> loadWithDistributedLock(RankQueryDTO dto, String cacheKey) {
+        String lockKey = LOCK_PREFIX + cacheKey;
+
+        boolean locked = tryGetLock(lockKey);
+        rankMetrics.lock(locked);
+        if (locked) {
+            log.debug("获得分布式锁，查询数据库：{}", cacheKey);
+            try {
+                return queryDatabaseAndCache(dto, cacheKey);
+            } finally {
+                releaseLock(lockKey);
+            }
+        }
 
+        // 没有获取到锁，说明其他实例正在查询，等它写入缓存后的通知
+        log.debug("没有获得锁，等待其他实例写入缓存：{}", cacheKey);
+        CompletableFuture<Void> published = rankCacheChannel.awaitLoaded(cacheKey);
         try {
-            String today = getTodayDate();
-            return merchantRankInfoMapper.selectByConditions(
-                    today, dto.getCityId(), dto.getType(), dto.getCategory());
+            // 注册完通知再查一次，防止在注册之前就已经写好了
+            List<MerchantRankInfo> cached = getBoardFromRedis(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+
+            published.get(PUBLISH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            cached = getBoardFromRedis(cacheKey);
+            if (cached != null) {
+                log.debug("收到通知后从缓存获取到数据：{}", cacheKey);
+                return cached;
+            }
+        } catch (TimeoutException e) {
+            log.warn("等待其他实例写入缓存超时：{}", cacheKey);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            System.err.println("直接查询数据库也失败了：" + e.getMessage());
-            return new ArrayList<>();
+            log.error("等待缓存数据时出错：{}", e.getMessage());
+        } finally {
+            rankCacheChannel.cancelAwait(cacheKey, published);
         }
+
+        // 还是没有，降级直接查数据库（不写缓存，缓存由持锁的实例负责）
+        return getFromDatabaseDirectly(dto);
     }
 
     /**
-     * 生成缓存key
+     * 从Redis读取榜单
+     * @return 榜单数据，NULL标记返回空列表，没有数据或等待更新返回null
      */
-    private String generateCacheKey(RankQueryDTO dto) {
-        String today = getTodayDate();
-        return CACHE_PREFIX + dto.getCityId() + ":" +
-                dto.getType() + ":" + dto.getCategory() + ":" + today;
+    private List<MerchantRankInfo> getBoardFromRedis(String cacheKey) {
+        long generation = localRankCache.generation();
+        Object cachedData = redis(() -> redisTemplate.opsForValue().get(cacheKey));
+        if (cachedData == null || CACHE_WAITING.equals(cachedData)) {
+            return null;
+        }
+        if (CACHE_NULL.equals(cachedData)) {
+            return new ArrayList<>();
+        }
+        return localRankCache.put(cacheKey, (List<MerchantRankInfo>) cachedData, generation);
+    }
+
+    /**
+     * 查询数据库并缓存结果
+     */
+    private List<MerchantRankInfo> queryDatabaseAndCache(RankQueryDTO dto, String cacheKey) {
+        try {
+            String today = getTodayDate();
+            List<MerchantRankInfo> result = rankMetrics.timeQuery("selectByConditions",
+                    () -> merchantRankInfoMapper.selectByConditions(today, dto.getCityId(), dto.getType(), dto.getCategory()));
+
+            if (result == null || result.isEmpty()) {
+                log.debug("数据库也没有数据，缓存NULL标记（防穿透）：{}", cacheKey);
+                // 数据库也没有数据，缓存NULL标记，防止缓存穿透
+                redis(() -> {
+                    redisTemplate.opsForValue().set(cacheKey, CACHE_NULL, NULL_CACHE_EXPIRE, TimeUnit.SECONDS);
+                    return null;
+                });
+                rankCacheChannel.publishLoaded(cacheKey);
+                return new ArrayList<>();
+            }
+
+            applyMovements(Map.of(boardId(dto.getCityId(), dto.getType(), dto.getCategory()), result), today);
+            log.debug("从数据库查到{}条数据，存入Redis：{}", result.size(), cacheKey);
+            // 有数据，存入Redis，写入商家索引，并登记这个榜单
+            indexBoard(cacheKey, boardId(dto.getCityId(), dto.getType(), dto.getCategory()), result);
+            redis(() -> redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                    writeBoard((RedisOperations<String, Object>) operations, cacheKey, result);
+                    return null;
+                }
+            }));
+            registerBoards(today, boardId(dto.getCityId(), dto.getType(), dto.getCategory()));
+            rankMetrics.boardsLoaded(1);
+            // 通知正在等待这个榜单的其他实例
+            rankCacheChannel.publishLoaded(cacheKey);
+
+            List<MerchantRankInfo> board = localRankCache.put(cacheKey, result);
+            rankFallback.remember(today, boardId(dto.getCityId(), dto.getType(), dto.getCategory()), board);
+            return board;
+
+        } catch (Exception e) {
+            log.error("查询数据库出错：{}", e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * 尝试获取分布式锁
+     */
+    private boolean tryGetLock(String lockKey) {
+        try {
+            // 使用setIfAbsent实现分布式锁（setnx命令）
+            Boolean success = redis(() -> redisTemplate.opsForValue().setIfAbsent(
+                    lockKey,
+                    "locked",
+                    LOCK_EXPIRE,
+                    TimeUnit.SECONDS
+            ));
+            return success != null && success;
+        } catch (Exception e) {
+            log.error("获取锁失败：{}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 释放分布式锁
+     */
+    private void releaseLock(String lockKey) {
+        try {
+            redis(() -> redisTemplate.delete(lockKey));
+            log.debug("释放锁：{}", lockKey);
+        } catch (Exception e) {
+            log.error("释放锁失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 每天12点执行（只有主实例执行，12点时没有执行成功的由每分钟检查补做）
+     * 1. 记录当前的数据版本号，这个版本及以前的榜单都算逻辑过期
+     * 2. 过期的榜单照常返回，查询时在后台刷新，不再返回空列表
+     * 3. 清掉水位并设置重置标记，每分钟检查任务发布新版本后切换到新数据
+     */
+    @Scheduled(cron = "0 0 12 * * ?")
+    public void resetAtNoon() {
+        // 只有主实例执行，其他实例通过失效通知看到结果
+        if (!rankLeaderElection.isLeader()) {
+            log.debug("不是主实例，跳过重置");
+            return;
+        }
+        log.info("中午12点，重置排行榜");
+
+        try {
+            // 获取今天的日期
+            String today = getTodayDate();
+
+            // 一次脚本带上主实例令牌完成（已经被取代的主实例写不进去）：
+            // 记录逻辑过期的版本号（缓存的榜单不删，新版本发布前继续使用），
+            // 清掉今天的水位（下次检查时所有榜单重新加载），设置重置标记
+            long version = readVersion(today);
+            Long reset = stringRedisTemplate.execute(RESET_SCRIPT,
+                    List.of(STALE_PREFIX + today, WATERMARK_PREFIX + today, "rank:reset:" + today, RankLeaderElection.FENCE_KEY),
+                    String.valueOf(version), "86400", String.valueOf(rankLeaderElection.fencingToken()));
+            if (reset != null && reset < 0) {
+                log.warn("本实例已不是主实例，放弃重置");
+                return;
+            }
+            log.info("版本{}及以前的榜单已标记为过期", version);
+
+            // 通知所有实例清空本地缓存（重新读取过期版本号）
+            rankCacheChannel.publishInvalidateAll();
+
+            log.info("12点重置完成");
+
+        } catch (Exception e) {
+            log.error("重置出错：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 榜单已逻辑过期时，提交一次后台刷新（当前请求照常返回旧数据）
+     * 本实例内同一个榜单每分钟最多提交一次，所有实例之间再用Redis标记节流
+     * @param staleBoard 已经拿到的旧榜单，用来判断数据有没有变化，没有时传null
+     */
+    private void refreshIfStale(RankQueryDTO dto, String cacheKey, List<MerchantRankInfo> staleBoard) {
+        if (isStale(getTodayDate())) {
+            submitRefresh(dto, cacheKey, staleBoard);
+        }
+    }
+
+    /**
+     * 当前版本的榜单是否已逻辑过期（12点重置之后还没有发布新版本）
+     */
+    private boolean isStale(String date) {
+        try {
+            return currentVersion(date) <= staleVersion(date);
+        } catch (DataAccessException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 异步判断是否已逻辑过期，读不到时当成没有过期
+     */
+    private CompletableFuture<Boolean> isStaleAsync(String date) {
+        return currentVersionAsync(date)
+                .thenCombine(staleVersionAsync(date), (version, staleVersion) -> version <= staleVersion)
+                .exceptionally(e -> false);
+    }
+
+    /**
+     * 提交一次后台刷新（不阻塞，可以在Redis的IO线程上调用）
+     */
+    private void submitRefresh(RankQueryDTO dto, String cacheKey, List<MerchantRankInfo> staleBoard) {
+        long now = System.currentTimeMillis();
+        Long notBefore = refreshNotBefore.get(cacheKey);
+        if (notBefore != null && notBefore > now) {
+            return;
+        }
+        long next = now + REFRESH_INTERVAL * 1000L;
+        boolean claimed = notBefore == null
+                ? refreshNotBefore.putIfAbsent(cacheKey, next) == null
+                : refreshNotBefore.replace(cacheKey, notBefore, next);
+        if (!claimed) {
+            return; // 其他线程刚刚提交过
+        }
+        refreshNotBefore.values().removeIf(time -> time < now);
+
+        refreshExecutor.execute(() -> refreshStaleBoard(dto, cacheKey, staleBoard));
+    }
+
+    /**
+     * 后台刷新一个逻辑过期的榜单：查数据库，有变化才写入缓存并通知所有实例
+     */
+    private void refreshStaleBoard(RankQueryDTO dto, String cacheKey, List<MerchantRankInfo> staleBoard) {
+        String today = getTodayDate();
+        String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+        // 重置后每个榜单只刷新一次，之后的变化由发布新版本处理（一直改写同一个key会让各实例反复清缓存）
+        String refreshedKey = STALE_PREFIX + today + ":" + staleVersion(today) + REFRESHED_SUFFIX;
+        try {
+            if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(refreshedKey, boardId))) {
+                return;
+            }
+            Boolean acquired = redisTemplate.opsForValue().setIfAbsent(
+                    REFRESH_LOCK_PREFIX + cacheKey, "refreshing", REFRESH_INTERVAL, TimeUnit.SECONDS);
+            if (acquired == null || !acquired) {
+                return; // 其他实例最近已经刷新过
+            }
+
+            List<MerchantRankInfo> result = rankMetrics.timeQuery("selectByConditions",
+                    () -> merchantRankInfoMapper.selectByConditions(today, dto.getCityId(), dto.getType(), dto.getCategory()));
+            if (result == null || result.isEmpty()) {
+                return; // 新数据还没到，继续用旧的
+            }
+            applyMovements(Map.of(boardId(dto.getCityId(), dto.getType(), dto.getCategory()), result), today);
+            if (staleBoard != null && Arrays.equals(RankBoardCodec.encodeBoard(result),
+                    RankBoardCodec.encodeBoard(staleBoard))) {
+                return; // 数据没有变化
+            }
+
+            // 先改商家索引（要用到旧的商家名次找出已经不在榜上的商家），再覆盖榜单
+            indexBoard(cacheKey, boardId(dto.getCityId(), dto.getType(), dto.getCategory()), result);
+            redisTemplate.executePipelined(new SessionCallback<Object>() {
+                @Override
+                public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                    writeBoard((RedisOperations<String, Object>) operations, cacheKey, result);
+                    return null;
+                }
+            });
+            registerBoards(today, boardId(dto.getCityId(), dto.getType(), dto.getCategory()));
+            // 副本里还是旧数据，删掉（下次读取时重新复制）
+            redisTemplate.delete(replicaKeys(cacheKey));
+            stringRedisTemplate.opsForSet().add(refreshedKey, boardId);
+            stringRedisTemplate.expire(refreshedKey, 86400, TimeUnit.SECONDS);
+            rankMetrics.boardsRefreshed(1);
+            log.info("后台刷新了过期榜单：{}", cacheKey);
+
+            // 所有实例的本地缓存和编码好的响应都换成新数据
+            rankCacheChannel.publishInvalidate(cacheKey);
+        } catch (Exception e) {
+            log.error("后台刷新榜单出错：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 登记有缓存的榜单，重置时只处理登记过的榜单
+     */
+    private void registerBoards(String date, String... boardIds) {
+        String registryKey = REGISTRY_PREFIX + date;
+        stringRedisTemplate.opsForSet().add(registryKey, boardIds);
+        stringRedisTemplate.expire(registryKey, REGISTRY_EXPIRE, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 每分钟检查一次（只有主实例执行，见RankLeaderElection）
+     * 1. 检查是否已到12点后且需要更新数据
+     * 2. 检查数据仓库是否有新数据
+     */
+    @Scheduled(fixedRate = 60000)
+    public void checkEveryMinute() {
+        // 只有主实例检查和发布，避免每个实例都去查数据库
+        if (!rankLeaderElection.isLeader()) {
+            log.debug("不是主实例，跳过检查");
+            return;
+        }
+        log.debug("每分钟检查任务开始");
+
+        try {
+            // 检查今天是否已经过了12点
+            LocalDateTime now = LocalDateTime.now(BEIJING_ZONE);
+            if (now.getHour() < 12) {
+                // 还没到12点，不用检查
+                log.debug("还没到12点，跳过检查");
+                return;
+            }
+
+            // 检查今天是否已经重置过
+            String today = getTodayDate();
+            Object resetFlag = redisTemplate.opsForValue().get("rank:reset:" + today);
+
+            if (resetFlag == null) {
+                // 12点后还没重置过，说明12点时的主实例重置失败或者挂了，由现在的主实例补上
+                log.info("今天还没重置过，补做重置");
+                resetAtNoon();
+                return;
+            }
+
+            log.debug("今天已重置，开始检查数据仓库");
+
+            // 先查整天数据的水位，没有变化就不用加载
+            BoardWatermark dayWatermark = rankMetrics.timeQuery("selectWatermarkByDate",
+                    () -> merchantRankInfoMapper.selectWatermarkByDate(today));
+            if (dayWatermark == null || dayWatermark.getRowCount() == null || dayWatermark.getRowCount() == 0) {
+                log.debug("数据仓库还没有今天的数据");
+                return;
+            }
+
+            String watermarkKey = WATERMARK_PREFIX + today;
+            Object publishedDayMark = stringRedisTemplate.opsForHash().get(watermarkKey, DAY_WATERMARK_FIELD);
+            if (dayWatermark.toMark().equals(publishedDayMark)) {
+                log.debug("今天的数据没有变化，跳过更新");
+                return;
+            }
+
+            refreshChangedBoards(today, dayWatermark);
+
+        } catch (Exception e) {
+            log.error("检查任务出错：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 本地缓存被清空后，只有数据版本真的变了（别的实例发布了新版本）才在后台写本地快照
+     * 12点重置等版本没变的清空不读取榜单；本实例发布的版本在切换成功后直接写
+     */
+    @EventListener
+    public void onCacheCleared(RankCacheClearedEvent event) {
+        snapshotExecutor.execute(() -> {
+            String date = getTodayDate();
+            long version;
+            try {
+                // 和预热共用一次版本号读取，走熔断
+                version = currentVersion(date);
+            } catch (DataAccessException e) {
+                logRedisError("写入榜单快照时读取数据版本号出错", e);
+                return;
+            }
+            if (version != 0 && !rankSnapshot.contains(date, version)) {
+                writeSnapshot(date, version);
+            }
+        });
+    }
+
+    /**
+     * 把某一天某个版本的所有榜单写到本地快照，直接用Redis里的二进制数据，不用解码再编码
+     */
+    private void writeSnapshot(String date, long version) {
+        try {
+
+            List<String> boardIds = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().count(PUBLISH_BATCH_SIZE).build();
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(REGISTRY_PREFIX + date, options)) {
+                cursor.forEachRemaining(boardIds::add);
+            }
+
+            Map<String, byte[]> boards = new LinkedHashMap<>();
+            for (int from = 0; from < boardIds.size(); from += PUBLISH_BATCH_SIZE) {
+                List<String> batch = boardIds.subList(from, Math.min(from + PUBLISH_BATCH_SIZE, boardIds.size()));
+                byte[][] keys = batch.stream()
+                        .map(boardId -> boardKey(boardId, date, version).getBytes(StandardCharsets.UTF_8))
+                        .toArray(byte[][]::new);
+                List<byte[]> values = redisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                        connection.stringCommands().mGet(keys));
+                for (int i = 0; values != null && i < batch.size(); i++) {
+                    if (RankBoardCodec.isBinary(values.get(i))) {
+                        boards.put(batch.get(i), values.get(i));
+                    }
+                }
+            }
+
+            // 读取期间又发布了新版本，等下一次通知再写
+            if (redis(() -> readVersion(date)) != version) {
+                return;
+            }
+            rankSnapshot.write(date, version, boards);
+        } catch (Exception e) {
+            log.warn("写入榜单快照失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 按榜单比较水位，只重新加载有变化的榜单
+     */
+    private void refreshChangedBoards(String date, BoardWatermark dayWatermark) {
+        String watermarkKey = WATERMARK_PREFIX + date;
+
+        // 已发布的水位
+        Map<Object, Object> published = stringRedisTemplate.opsForHash().entries(watermarkKey);
+
+        // 找出水位有变化的榜单
+        Map<String, String> currentMarks = new HashMap<>();
+        List<BoardWatermark> changed = new ArrayList<>();
+        for (BoardWatermark watermark : merchantRankInfoMapper.selectBoardWatermarksByDate(date)) {
+            String boardId = boardId(watermark.getCityId(), watermark.getType(), watermark.getCategory());
+            currentMarks.put(boardId, watermark.toMark());
+            if (!watermark.toMark().equals(published.get(boardId))) {
+                changed.add(watermark);
+            }
+        }
+
+        // 用当天所有有数据的榜单重建准入过滤器（先于失效通知，各实例收到通知时加载到的是新的）
+        try {
+            rankAdmissionFilter.rebuild(date, currentMarks.keySet());
+        } catch (Exception e) {
+            log.warn("重建榜单过滤器失败：{}", e.getMessage());
+        }
+
+        // 已经没有数据的榜单，删掉缓存，下次查询时重新加载
+        List<String> removed = new ArrayList<>();
+        for (Object field : published.keySet()) {
+            String boardId = (String) field;
+            if (!DAY_WATERMARK_FIELD.equals(boardId) && !currentMarks.containsKey(boardId)) {
+                removed.add(boardId);
+            }
+        }
+        if (!removed.isEmpty()) {
+            long version = readVersion(date);
+            List<String> removedKeys = new ArrayList<>();
+            for (String boardId : removed) {
+                // 先用旧的商家名次把这个榜单从商家索引里去掉
+                indexBoard(merchantIndexKey(date, version), boardKey(boardId, date, version) + POS_SUFFIX,
+                        boardId, List.of());
+                removedKeys.add(boardKey(boardId, date, version));
+                removedKeys.add(boardKey(boardId, date, version) + ZSET_SUFFIX);
+                removedKeys.add(boardKey(boardId, date, version) + POS_SUFFIX);
+                removedKeys.addAll(replicaKeys(boardKey(boardId, date, version)));
+            }
+            redisTemplate.delete(removedKeys);
+            stringRedisTemplate.opsForHash().delete(watermarkKey, removed.toArray());
+            stringRedisTemplate.opsForSet().remove(REGISTRY_PREFIX + date, removed.toArray());
+            rankCacheChannel.publishInvalidateAll();
+        }
+
+        log.info("数据仓库有变化，共{}个榜单，其中{}个有变化", currentMarks.size(), changed.size());
+        if (changed.isEmpty()) {
+            stringRedisTemplate.opsForHash().put(watermarkKey, DAY_WATERMARK_FIELD, dayWatermark.toMark());
+            return;
+        }
+
+        // 变化多的时候按天流式读取全部数据，变化少的时候只查变化的榜单
+        Set<String> updated;
+        if (changed.size() >= currentMarks.size() * FULL_RELOAD_RATIO) {
+            updated = streamAndPublish(date, currentMarks.keySet());
+        } else {
+            List<MerchantRankInfo> changedData = new ArrayList<>();
+            for (BoardWatermark watermark : changed) {
+                changedData.addAll(rankMetrics.timeQuery("selectByConditions", () -> merchantRankInfoMapper.selectByConditions(
+                        date, watermark.getCityId(), watermark.getType(), watermark.getCategory())));
+            }
+            // 数据已准备好，更新到Redis
+            updated = updateCacheWithNewData(changedData, date);
+        }
+
+        // 记录已发布的水位，没更新成功的榜单下次还会重试
+        Map<String, String> newMarks = new HashMap<>();
+        for (String boardId : updated) {
+            newMarks.put(boardId, currentMarks.get(boardId));
+        }
+        if (updated.containsAll(changed.stream()
+                .map(w -> boardId(w.getCityId(), w.getType(), w.getCategory())).toList())) {
+            newMarks.put(DAY_WATERMARK_FIELD, dayWatermark.toMark());
+        }
+        if (!newMarks.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(watermarkKey, newMarks);
+            stringRedisTemplate.expire(watermarkKey, REGISTRY_EXPIRE, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 用新数据更新缓存
+     * 1. 所有榜单写到新版本的key下（rank:v{n}:...），按批用pipeline写入
+     * 2. 没有变化的榜单直接在Redis里从旧版本复制过来
+     * 3. 最后切换版本指针，读取方要么看到整个旧版本，要么看到整个新版本
+     * @return 更新成功的榜单标识
+     */
+    private Set<String> updateCacheWithNewData(List<MerchantRankInfo> allData, String date) {
+        try {
+            // 按条件分组
+            Map<String, List<MerchantRankInfo>> groupedData = groupByBoard(allData);
+
+            if (groupedData.isEmpty()) {
+                return new HashSet<>();
+            }
+
+            Publication publication = new Publication(date);
+            for (Map.Entry<String, List<MerchantRankInfo>> entry : groupedData.entrySet()) {
+                publication.add(entry.getKey(), entry.getValue());
+            }
+            return publication.finish();
+
+        } catch (Exception e) {
+            log.error("更新缓存出错：{}", e.getMessage());
+            return new HashSet<>();
+        }
+    }
+
+    /**
+     * 按天流式读取全部数据并发布，不把整天的数据放到一个List里
+     * 1. 用MyBatis的Cursor按(city_id, type, category, sort)顺序读取，数据库端按fetchSize分批返回
+     * 2. 一个榜单的数据读完就交给发布，每凑够一批就写入Redis，内存里只有一批榜单
+     * 3. 配置了多个分区时把当天有数据的城市分成几组，每组一个连接按(date, city_id)索引并行读取
+     * @param boardIds 当天有数据的榜单
+     * @return 更新成功的榜单标识
+     */
+    private Set<String> streamAndPublish(String date, Set<String> boardIds) {
+        List<List<String>> cityGroups = cityGroups(boardIds, Math.max(1, refreshPartitions));
+        int partitions = cityGroups.size();
+        try {
+            Publication publication = new Publication(date);
+            rankMetrics.timeQuery("streamByDate", () -> {
+                if (partitions <= 1) {
+                    streamPartition(date, null, publication);
+                    return null;
+                }
+                ExecutorService executor = Executors.newFixedThreadPool(partitions, runnable -> {
+                    Thread thread = new Thread(runnable, "rank-stream");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                try {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (List<String> cityIds : cityGroups) {
+                        futures.add(executor.submit(() -> streamPartition(date, cityIds, publication)));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException("分区读取失败", e);
+                } finally {
+                    executor.shutdownNow();
+                }
+                return null;
+            });
+            return publication.isEmpty() ? new HashSet<>() : publication.finish();
+
+        } catch (Exception e) {
+            log.error("流式更新缓存出错：{}", e.getMessage());
+            return new HashSet<>();
+        }
+    }
+
+    /**
+     * 把城市按顺序分成连续的几组，每组的城市个数差不多
+     */
+    static List<List<String>> cityGroups(Set<String> boardIds, int partitions) {
+        List<String> cityIds = new ArrayList<>(new TreeSet<>(boardIds.stream()
+                .map(boardId -> boardId.substring(0, boardId.indexOf(':'))).toList()));
+        List<List<String>> groups = new ArrayList<>();
+        int size = Math.max(1, (cityIds.size() + partitions - 1) / partitions);
+        for (int from = 0; from < cityIds.size(); from += size) {
+            groups.add(cityIds.subList(from, Math.min(from + size, cityIds.size())));
+        }
+        return groups;
+    }
+
+    /**
+     * 读取一个分区，遇到下一个榜单的第一行时把上一个榜单交给发布
+     * @param cityIds 这个分区的城市，null表示全部
+     */
+    private void streamPartition(String date, List<String> cityIds, Publication publication) {
+        try (SqlSession session = sqlSessionFactory.openSession();
+             org.apache.ibatis.cursor.Cursor<MerchantRankInfo> cursor = session.getMapper(MerchantRankInfoMapper.class)
+                     .streamByDate(date, cityIds)) {
+            List<MerchantRankInfo> board = new ArrayList<>();
+            MerchantRankInfo head = null;
+            for (MerchantRankInfo info : cursor) {
+                if (head != null && !sameBoard(head, info)) {
+                    publication.add(boardId(head.getCityId(), head.getType(), head.getCategory()), board);
+                    board = new ArrayList<>();
+                }
+                if (board.isEmpty()) {
+                    head = info;
+                }
+                board.add(info);
+            }
+            if (head != null) {
+                publication.add(boardId(head.getCityId(), head.getType(), head.getCategory()), board);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean sameBoard(MerchantRankInfo a, MerchantRankInfo b) {
+        return Objects.equals(a.getCityId(), b.getCityId()) && Objects.equals(a.getType(), b.getType())
+                && Objects.equals(a.getCategory(), b.getCategory());
+    }
+
+    /**
+     * 一次新版本发布
+     * 1. 先把旧版本的商家索引复制到新版本
+     * 2. 榜单逐个加入，凑够一批就写到新版本的key下、改商家索引里这些榜单的名次、合并到周榜月榜
+     * 3. 最后复制没有变化的榜单、切换版本指针
+     * 多个分区线程可以同时加入榜单，只有交换批次时加锁，写Redis在锁外面
+     */
+    private class Publication {
+        private final String date;
+        private final long oldVersion;
+        private final long newVersion;
+        private final String indexKey;
+        private Map<String, List<MerchantRankInfo>> batch = new LinkedHashMap<>();
+        private final Set<String> boardIds = new HashSet<>();
+
+        private Publication(String date) {
+            this.date = date;
+            this.oldVersion = readVersion(date);
+            Long version = stringRedisTemplate.opsForValue().increment(VERSION_SEQ_KEY);
+            if (version == null) {
+                throw new IllegalStateException("生成数据版本号失败");
+            }
+            this.newVersion = version;
+            // 没有变化的榜单会从旧版本复制过来，商家索引也从旧版本开始改
+            this.indexKey = merchantIndexKey(date, newVersion);
+            redisTemplate.copy(merchantIndexKey(date, oldVersion), indexKey, true);
+        }
+
+        private void add(String boardId, List<MerchantRankInfo> board) {
+            Map<String, List<MerchantRankInfo>> full = null;
+            synchronized (this) {
+                batch.put(boardId, board);
+                boardIds.add(boardId);
+                if (batch.size() >= PUBLISH_BATCH_SIZE) {
+                    full = takeBatch();
+                }
+            }
+            if (full != null) {
+                flush(full);
+            }
+        }
+
+        private synchronized boolean isEmpty() {
+            return boardIds.isEmpty();
+        }
+
+        private synchronized Map<String, List<MerchantRankInfo>> takeBatch() {
+            Map<String, List<MerchantRankInfo>> taken = batch;
+            batch = new LinkedHashMap<>();
+            return taken;
+        }
+
+        private void flush(Map<String, List<MerchantRankInfo>> boards) {
+            if (boards.isEmpty()) {
+                return;
+            }
+            // 和前一天比算名次变化，写入榜单
+            applyMovements(boards, date);
+            writeBoards(new ArrayList<>(boards.entrySet()), date, newVersion);
+            // 用旧版本的商家名次去掉这些榜单上的旧名次，写入新名次
+            for (Map.Entry<String, List<MerchantRankInfo>> entry : boards.entrySet()) {
+                indexBoard(indexKey, boardKey(entry.getKey(), date, oldVersion) + POS_SUFFIX,
+                        entry.getKey(), entry.getValue());
+            }
+            // 有变化的榜单合并到周榜、月榜
+            rankCycleAggregator.fold(date, boards);
+        }
+
+        /**
+         * 所有榜单都加入之后调用
+         * @return 更新成功的榜单标识，版本没有切换成功时返回空集合
+         */
+        private Set<String> finish() {
+            // 1. 写入剩下的有变化的榜单
+            flush(takeBatch());
+
+            // 2. 没有变化的榜单从旧版本复制
+            registerBoards(date, boardIds.toArray(new String[0]));
+            int copiedCount = copyUnchangedBoards(boardIds, date, oldVersion, newVersion);
+            redisTemplate.expire(indexKey, REGISTRY_EXPIRE, TimeUnit.SECONDS);
+
+            // 3. 切换版本指针（带上主实例令牌）
+            Long switched = stringRedisTemplate.execute(SWITCH_VERSION_SCRIPT,
+                    List.of(VERSION_PREFIX + date, RankLeaderElection.FENCE_KEY), String.valueOf(newVersion),
+                    String.valueOf(REGISTRY_EXPIRE), String.valueOf(rankLeaderElection.fencingToken()));
+            if (switched != null && switched < 0) {
+                log.warn("本实例已不是主实例，放弃版本{}", newVersion);
+                return new HashSet<>();
+            }
+            if (switched == null || switched == 0) {
+                log.info("已有更新的版本发布，放弃版本{}", newVersion);
+                return new HashSet<>();
+            }
+
+            rankMetrics.boardsPublished(boardIds.size());
+            log.info("发布数据版本{}：更新了{}个榜单，复制了{}个榜单", newVersion, boardIds.size(), copiedCount);
+
+            // 本实例发布的版本直接写快照，收到自己的清空通知时版本已经在快照里，不会再读一遍
+            snapshotExecutor.execute(() -> writeSnapshot(date, newVersion));
+            // 通知所有实例清空本地缓存
+            rankCacheChannel.publishInvalidateAll();
+            return boardIds;
+        }
+    }
+
+    /**
+     * 按榜单分组（榜单标识 -> 这个榜单的数据，保持原来的顺序）
+     */
+    static Map<String, List<MerchantRankInfo>> groupByBoard(List<MerchantRankInfo> rows) {
+        Map<String, List<MerchantRankInfo>> grouped = new HashMap<>();
+        for (MerchantRankInfo item : rows) {
+            grouped.computeIfAbsent(boardId(item.getCityId(), item.getType(), item.getCategory()),
+                    key -> new ArrayList<>()).add(item);
+        }
+        return grouped;
+    }
+
+    /**
+     * 用一次pipeline写入一批榜单，同时记下当天的名次（第二天算名次变化用）
+     */
+    private void writeBoards(List<Map.Entry<String, List<MerchantRankInfo>>> batch, String date, long version) {
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                for (Map.Entry<String, List<MerchantRankInfo>> entry : batch) {
+                    writeBoard(ops, boardKey(entry.getKey(), date, version), entry.getValue());
+
+                    String sortKey = daySortKey(entry.getKey(), date);
+                    Map<String, Object> positions = positionsOf(entry.getValue());
+                    ops.delete(sortKey);
+                    if (!positions.isEmpty()) {
+                        ops.opsForHash().putAll(sortKey, positions);
+                        ops.expire(sortKey, DAY_SORT_EXPIRE, TimeUnit.SECONDS);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 和前一天最后发布的名次比较，算出每个商家的名次变化（一批榜单一次pipeline读取）
+     * @param boards 榜单标识 -> 榜单
+     * @param date 榜单的日期
+     */
+    private void applyMovements(Map<String, List<MerchantRankInfo>> boards, String date) {
+        if (boards.isEmpty()) {
+            return;
+        }
+        String previous = previousDay(date);
+        List<String> boardIds = new ArrayList<>(boards.keySet());
+        List<Object> previousSorts = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                for (String boardId : boardIds) {
+                    ops.opsForHash().entries(daySortKey(boardId, previous));
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < boardIds.size(); i++) {
+            Object sorts = previousSorts.get(i);
+            applyMovement(boards.get(boardIds.get(i)), sorts instanceof Map<?, ?> map ? map : Map.of());
+        }
+    }
+
+    /**
+     * 名次变化 = 前一天的名次 - 今天的名次（正数是上升），前一天不在榜上的是null
+     */
+    static void applyMovement(List<MerchantRankInfo> board, Map<?, ?> previousSorts) {
+        for (int i = 0; i < board.size(); i++) {
+            MerchantRankInfo info = board.get(i);
+            Object previous = info.getMerchantId() == null ? null : previousSorts.get(String.valueOf(info.getMerchantId()));
+            int sort = info.getSort() != null ? info.getSort() : i + 1;
+            info.setMovement(previous == null ? null : Integer.parseInt(previous.toString()) - sort);
+        }
+    }
+
+    /**
+     * 榜单上每个商家的名次：merchantId -> sort（没有sort时按榜单里的顺序）
+     */
+    private static Map<String, Object> positionsOf(List<MerchantRankInfo> board) {
+        Map<String, Object> positions = new HashMap<>();
+        for (int i = 0; i < board.size(); i++) {
+            MerchantRankInfo info = board.get(i);
+            if (info.getMerchantId() != null) {
+                positions.put(String.valueOf(info.getMerchantId()), info.getSort() != null ? info.getSort() : i + 1);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * 写入一个榜单：整个榜单一个key，另外按sort写一份有序集合用来分页读取，
+     * 再写一份商家名次用来查询某个商家的名次
+     * 在pipeline中调用
+     */
+    private void writeBoard(RedisOperations<String, Object> ops, String cacheKey, List<MerchantRankInfo> board) {
+        ops.opsForValue().set(cacheKey, board, CACHE_EXPIRE, TimeUnit.SECONDS);
+
+        String zsetKey = cacheKey + ZSET_SUFFIX;
+        String posKey = cacheKey + POS_SUFFIX;
+        Set<ZSetOperations.TypedTuple<Object>> tuples = new HashSet<>();
+        for (int i = 0; i < board.size(); i++) {
+            MerchantRankInfo info = board.get(i);
+            int sort = info.getSort() != null ? info.getSort() : i + 1;
+            tuples.add(ZSetOperations.TypedTuple.of(info, (double) sort));
+        }
+        Map<String, Object> positions = positionsOf(board);
+        ops.delete(List.of(zsetKey, posKey));
+        ops.opsForZSet().add(zsetKey, tuples);
+        ops.expire(zsetKey, CACHE_EXPIRE, TimeUnit.SECONDS);
+        if (!positions.isEmpty()) {
+            // 商家名次和商家索引一样长（更新索引时要用旧的名次找出不在榜上的商家）
+            ops.opsForHash().putAll(posKey, positions);
+            ops.expire(posKey, REGISTRY_EXPIRE, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 缓存未命中或者后台刷新时写入一个榜单，同时写入同一个版本的商家索引（失败不影响榜单）
+     * @param cacheKey 榜单的缓存key（带数据版本号）
+     */
+    private void indexBoard(String cacheKey, String boardId, List<MerchantRankInfo> board) {
+        indexBoard(merchantIndexKeyOf(cacheKey, boardId), cacheKey + POS_SUFFIX, boardId, board);
+    }
+
+    /**
+     * 改商家索引里一个榜单的名次：去掉旧的商家名次里的商家在这个榜单上的名次，写入新名次（失败不影响榜单）
+     * @param oldPosKey 这个榜单旧的商家名次（列出要去掉的商家）
+     */
+    private void indexBoard(String indexKey, String oldPosKey, String boardId, List<MerchantRankInfo> board) {
+        List<String> args = new ArrayList<>();
+        args.add(boardId);
+        args.add(String.valueOf(REGISTRY_EXPIRE));
+        positionsOf(board).forEach((merchantId, sort) -> {
+            args.add(merchantId);
+            args.add(String.valueOf(sort));
+        });
+        try {
+            stringRedisTemplate.execute(INDEX_BOARD_SCRIPT, List.of(indexKey, oldPosKey), args.toArray());
+        } catch (Exception e) {
+            log.warn("写入商家索引失败：{}，{}", boardId, e.getMessage());
+        }
+    }
+
+    /**
+     * 商家索引的值：cityId:type:category=sort;cityId:type:category=sort
+     */
+    private static Map<String, Integer> parsePositions(String value) {
+        Map<String, Integer> positions = new TreeMap<>();
+        if (value == null || value.isEmpty()) {
+            return positions;
+        }
+        for (String item : value.split(";")) {
+            int split = item.lastIndexOf('=');
+            positions.put(item.substring(0, split), Integer.parseInt(item.substring(split + 1)));
+        }
+        return positions;
+    }
+
+    /**
+     * 今天需要预热的榜单
+     * 优先用今天登记过的榜单（被查询或发布过），没有时用数据仓库里今天有数据的榜单
+     * Redis不可用时返回空列表（预热没有意义，查询都会降级到数据库）
+     */
+    public List<RankQueryDTO> todayBoards(int limit) {
+        String today = getTodayDate();
+        List<RankQueryDTO> boards = new ArrayList<>();
+        try {
+            ScanOptions options = ScanOptions.scanOptions().count(PUBLISH_BATCH_SIZE).build();
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(REGISTRY_PREFIX + today, options)) {
+                while (cursor.hasNext() && boards.size() < limit) {
+                    boards.add(parseBoardId(cursor.next()));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("读取今天登记的榜单出错：{}", e.getMessage());
+            return boards;
+        }
+        if (!boards.isEmpty()) {
+            return boards;
+        }
+
+        try {
+            for (BoardWatermark watermark : merchantRankInfoMapper.selectBoardWatermarksByDate(today)) {
+                if (boards.size() >= limit) {
+                    break;
+                }
+                boards.add(parseBoardId(boardId(watermark.getCityId(), watermark.getType(), watermark.getCategory())));
+            }
+        } catch (Exception e) {
+            log.warn("查询今天有数据的榜单出错：{}", e.getMessage());
+        }
+        return boards;
+    }
+
+    /**
+     * 查询商家在今天各个榜单上的名次
+     * @param board 只查某个榜单时传cityId, type, category，否则传null
+     */
+    public List<MerchantPositionDTO> getMerchantPositions(Long merchantId, RankQueryDTO board) {
+        String today = getTodayDate();
+        List<MerchantPositionDTO> result = new ArrayList<>();
+
+        try {
+            long version = currentVersion(today);
+            if (board != null) {
+                // 指定了榜单，直接查这个榜单的商家名次
+                String boardId = boardId(board.getCityId(), board.getType(), board.getCategory());
+                Object sort = redis(() -> redisTemplate.opsForHash().get(boardKey(boardId, today, version) + POS_SUFFIX,
+                        String.valueOf(merchantId)));
+                if (sort != null) {
+                    result.add(new MerchantPositionDTO(board.getCityId(), board.getType(), board.getCategory(),
+                            ((Number) sort).intValue()));
+                }
+                return result;
+            }
+
+            // 没有指定榜单，查商家索引
+            Object value = redis(() -> redisTemplate.opsForHash().get(merchantIndexKey(today, version), String.valueOf(merchantId)));
+            for (Map.Entry<String, Integer> entry : parsePositions((String) value).entrySet()) {
+                RankQueryDTO position = parseBoardId(entry.getKey());
+                result.add(new MerchantPositionDTO(position.getCityId(), position.getType(), position.getCategory(),
+                        entry.getValue()));
+            }
+        } catch (Exception e) {
+            log.error("查询商家名次出错：{}", e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * 把登记过、但这次没有变化的榜单从旧版本复制到新版本（Redis内部复制，不经过网络传输数据）
+     */
+    private int copyUnchangedBoards(Set<String> changedBoardIds, String date, long oldVersion, long newVersion) {
+        int copiedCount = 0;
+        List<String> batch = new ArrayList<>(PUBLISH_BATCH_SIZE);
+        ScanOptions options = ScanOptions.scanOptions().count(PUBLISH_BATCH_SIZE).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(REGISTRY_PREFIX + date, options)) {
+            while (cursor.hasNext()) {
+                String boardId = cursor.next();
+                if (changedBoardIds.contains(boardId)) {
+                    continue;
+                }
+                batch.add(boardId);
+                if (batch.size() >= PUBLISH_BATCH_SIZE) {
+                    copiedCount += copyBoards(batch, date, oldVersion, newVersion);
+                    batch.clear();
+                }
+            }
+        }
+        copiedCount += copyBoards(batch, date, oldVersion, newVersion);
+        return copiedCount;
+    }
+
+    private int copyBoards(List<String> boardIds, String date, long oldVersion, long newVersion) {
+        if (boardIds.isEmpty()) {
+            return 0;
+        }
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                for (String boardId : boardIds) {
+                    String oldKey = boardKey(boardId, date, oldVersion);
+                    String newKey = boardKey(boardId, date, newVersion);
+                    ops.copy(oldKey, newKey, true);
+                    ops.copy(oldKey + ZSET_SUFFIX, newKey + ZSET_SUFFIX, true);
+                    ops.copy(oldKey + POS_SUFFIX, newKey + POS_SUFFIX, true);
+                }
+                return null;
+            }
+        });
+        return boardIds.size();
+    }
+
+    /**
+     * 直接查询数据库（降级方法）
+     * 同一个榜单合并成一次查询，同时查询的线程数有上限，超过时返回最近成功读到的榜单
+     */
+    private List<MerchantRankInfo> getFromDatabaseDirectly(RankQueryDTO dto) {
+        log.warn("降级：直接查询数据库：{}", dto);
+        String date = queryDate(dto);
+        return rankFallback.query(date, boardId(dto.getCityId(), dto.getType(), dto.getCategory()),
+                () -> rankMetrics.timeQuery("selectByConditions",
+                        () -> merchantRankInfoMapper.selectByConditions(date, dto.getCityId(), dto.getType(), dto.getCategory())));
+    }
+
+    /**
+     * Redis出错或熔断时的降级：优先返回最近成功读到的榜单（可能稍旧），没有再直接查数据库
+     */
+    private List<MerchantRankInfo> redisUnavailable(RankQueryDTO dto) {
+        String today = getTodayDate();
+        return rankFallback.lastGoodOrQuery(today, boardId(dto.getCityId(), dto.getType(), dto.getCategory()),
+                () -> rankMetrics.timeQuery("selectByConditions",
+                        () -> merchantRankInfoMapper.selectByConditions(today, dto.getCityId(), dto.getType(), dto.getCategory())));
+    }
+
+    /**
+     * 经过熔断器访问Redis：熔断中直接抛异常，不再等待超时
+     * 只有Redis访问异常（DataAccessException）算失败，数据问题等其他异常说明Redis正常响应了
+     */
+    private <T> T redis(Supplier<T> call) {
+        if (!redisBreaker.allowRequest()) {
+            throw new RedisConnectionFailureException(REDIS_OPEN_MESSAGE);
+        }
+        try {
+            T result = call.get();
+            redisBreaker.recordSuccess();
+            return result;
+        } catch (DataAccessException e) {
+            redisFailed();
+            throw e;
+        } catch (RuntimeException e) {
+            redisBreaker.recordSuccess();
+            throw e;
+        }
+    }
+
+    /**
+     * 异步访问Redis，熔断规则和redis()一样
+     */
+    private <T> CompletableFuture<T> redisAsync(Supplier<Mono<T>> call) {
+        if (!redisBreaker.allowRequest()) {
+            return CompletableFuture.failedFuture(new RedisConnectionFailureException(REDIS_OPEN_MESSAGE));
+        }
+        return call.get().toFuture()
+                .whenComplete((result, e) -> {
+                    if (e != null && unwrap(e) instanceof DataAccessException) {
+                        redisFailed();
+                    } else {
+                        redisBreaker.recordSuccess();
+                    }
+                });
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * 熔断中每个请求都会走到这里，只记debug日志（熔断时已经记过error）
+     */
+    private void logRedisError(String message, Throwable e) {
+        if (redisBreaker.isOpen()) {
+            log.debug("{}：{}", message, unwrap(e).getMessage());
+        } else {
+            log.error("{}：{}", message, unwrap(e).getMessage());
+        }
+    }
+
+    private void redisFailed() {
+        if (redisBreaker.recordFailure()) {
+            rankMetrics.redisCircuitOpened();
+            log.error("Redis连续失败{}次，熔断{}ms", REDIS_FAILURE_THRESHOLD, REDIS_OPEN_MILLIS);
+        }
+    }
+
+    /**
+     * 榜单当前的缓存key（带数据版本号），版本号读不到时返回null（响应不缓存）
+     */
+    public String boardCacheKey(RankQueryDTO dto) {
+        try {
+            return generateCacheKey(dto);
+        } catch (DataAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 异步获取榜单当前的缓存key，版本号本地缓存没有时用响应式命令读Redis
+     * 版本号读不到（本实例也没读到过）时以DataAccessException结束
+     */
+    public CompletableFuture<String> boardCacheKeyAsync(RankQueryDTO dto) {
+        if (RankCycleAggregator.isCycle(dto.getRankCycle()) || isHistory(dto)) {
+            return CompletableFuture.completedFuture(generateCacheKey(dto));
+        }
+        String date = queryDate(dto);
+        String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+        return currentVersionAsync(date).thenApply(version -> boardKey(boardId, date, version));
+    }
+
+    /**
+     * 生成缓存key
+     */
+    private String generateCacheKey(RankQueryDTO dto) {
+        String date = queryDate(dto);
+        String boardId = boardId(dto.getCityId(), dto.getType(), dto.getCategory());
+        if (RankCycleAggregator.isCycle(dto.getRankCycle())) {
+            return RankCycleAggregator.cycleKey(dto.getRankCycle(), boardId, date);
+        }
+        if (isHistory(dto)) {
+            return HISTORY_PREFIX + boardId + ":" + date;
+        }
+        return boardKey(boardId, date, currentVersion(date));
+    }
+
+    /**
+     * 查询的日期，不传时是今天
+     */
+    private static String queryDate(RankQueryDTO dto) {
+        return dto.getDate() != null ? dto.getDate() : getTodayDate();
+    }
+
+    /**
+     * 是否查询之前某天的日榜
+     */
+    private static boolean isHistory(RankQueryDTO dto) {
+        return dto.getDate() != null && !RankCycleAggregator.isCycle(dto.getRankCycle())
+                && !dto.getDate().equals(getTodayDate());
+    }
+
+    /**
+     * 日期参数是否合法：不传，或者是今天及以前MAX_HISTORY_DAYS天内的yyyy-MM-dd
+     */
+    public static boolean validDate(String date) {
+        if (date == null) {
+            return true;
+        }
+        try {
+            LocalDate day = LocalDate.parse(date, DATE_FORMATTER);
+            LocalDate today = LocalDate.now(BEIJING_ZONE);
+            return !day.isAfter(today) && !day.isBefore(today.minusDays(MAX_HISTORY_DAYS));
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static String previousDay(String date) {
+        return LocalDate.parse(date, DATE_FORMATTER).minusDays(1).format(DATE_FORMATTER);
+    }
+
+    /**
+     * 每天的名次：rank:sort:cityId:type:category:date
+     */
+    private static String daySortKey(String boardId, String date) {
+        return DAY_SORT_PREFIX + boardId + ":" + date;
+    }
+
+    /**
+     * 当前数据版本号（先查本地缓存，发布新版本时本地缓存会被清掉）
+     * Redis读不到时继续用上一次读到的版本号；本实例还没读到过时抛异常走降级，
+     * 不能当成版本0（缓存未命中时会把榜单写到版本0下，以后的版本切换不会清理）
+     */
+    private long currentVersion(String date) {
+        Long cached = localRankCache.getVersion(date);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            long version = redis(() -> readVersion(date));
+            localRankCache.putVersion(date, version);
+            return version;
+        } catch (DataAccessException e) {
+            Long retained = localRankCache.retainVersion(date);
+            if (retained == null) {
+                throw e;
+            }
+            logRedisError("读取数据版本号出错，继续使用版本" + retained, e);
+            return retained;
+        }
+    }
+
+    /**
+     * 12点重置时的数据版本号（先查本地缓存），今天还没重置过返回-1
+     */
+    private long staleVersion(String date) {
+        Long cached = localRankCache.getStaleVersion(date);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            String version = redis(() -> stringRedisTemplate.opsForValue().get(STALE_PREFIX + date));
+            long staleVersion = version == null ? -1 : Long.parseLong(version);
+            localRankCache.putStaleVersion(date, staleVersion);
+            return staleVersion;
+        } catch (DataAccessException e) {
+            // 继续用上一次读到的，没读到过时当成没有过期（短时间内不再读Redis）
+            Long retained = localRankCache.retainStaleVersion(date);
+            if (retained == null) {
+                localRankCache.putStaleVersion(date, -1);
+                retained = -1L;
+            }
+            logRedisError("读取过期版本号出错", e);
+            return retained;
+        }
+    }
+
+    /**
+     * 异步读取当前数据版本号，出错时的处理和currentVersion一样
+     */
+    private CompletableFuture<Long> currentVersionAsync(String date) {
+        Long cached = localRankCache.getVersion(date);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return readLongAsync(VERSION_PREFIX + date, 0)
+                .thenApply(version -> {
+                    localRankCache.putVersion(date, version);
+                    return version;
+                })
+                .exceptionallyCompose(e -> {
+                    Long retained = localRankCache.retainVersion(date);
+                    if (retained == null) {
+                        return CompletableFuture.failedFuture(unwrap(e));
+                    }
+                    logRedisError("读取数据版本号出错，继续使用版本" + retained, e);
+                    return CompletableFuture.completedFuture(retained);
+                });
+    }
+
+    /**
+     * 异步读取12点重置时的数据版本号，出错时的处理和staleVersion一样
+     */
+    private CompletableFuture<Long> staleVersionAsync(String date) {
+        Long cached = localRankCache.getStaleVersion(date);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return readLongAsync(STALE_PREFIX + date, -1)
+                .thenApply(staleVersion -> {
+                    localRankCache.putStaleVersion(date, staleVersion);
+                    return staleVersion;
+                })
+                .exceptionally(e -> {
+                    Long retained = localRankCache.retainStaleVersion(date);
+                    if (retained == null) {
+                        localRankCache.putStaleVersion(date, -1);
+                        retained = -1L;
+                    }
+                    logRedisError("读取过期版本号出错", e);
+                    return retained;
+                });
+    }
+
+    /**
+     * 用响应式命令读一个数字，key不存在时返回defaultValue
+     */
+    private CompletableFuture<Long> readLongAsync(String key, long defaultValue) {
+        return redisAsync(() -> reactiveStringRedisTemplate.opsForValue().get(key)
+                .map(Long::parseLong)
+                .defaultIfEmpty(defaultValue));
+    }
+
+    /**
+     * 从Redis读取当前数据版本号，还没有发布过返回0
+     */
+    private long readVersion(String date) {
+        String version = stringRedisTemplate.opsForValue().get(VERSION_PREFIX + date);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    /**
+     * 榜单标识：cityId:type:category
+     */
+    private static String boardId(String cityId, Integer type, Integer category) {
+        return cityId + ":" + type + ":" + category;
+    }
+
+    /**
+     * 把榜单标识拆成查询参数
+     */
+    private static RankQueryDTO parseBoardId(String boardId) {
+        int categorySplit = boardId.lastIndexOf(':');
+        int typeSplit = boardId.lastIndexOf(':', categorySplit - 1);
+        RankQueryDTO dto = new RankQueryDTO();
+        dto.setCityId(boardId.substring(0, typeSplit));
+        dto.setType(Integer.valueOf(boardId.substring(typeSplit + 1, categorySplit)));
+        dto.setCategory(Integer.valueOf(boardId.substring(categorySplit + 1)));
+        return dto;
+    }
+
+    /**
+     * 榜单的缓存key
+     * 还没有发布过版本：rank:cityId:type:category:date
+     * 发布过版本：rank:v{version}:cityId:type:category:date
+     */
+    private static String boardKey(String boardId, String date, long version) {
+        if (version == 0) {
+            return CACHE_PREFIX + boardId + ":" + date;
+        }
+        return CACHE_PREFIX + "v" + version + ":" + boardId + ":" + date;
+    }
+
+    /**
+     * 商家索引的key：rank:v{version}:merchants:date
+     */
+    private static String merchantIndexKey(String date, long version) {
+        return boardKey(MERCHANT_INDEX, date, version);
+    }
+
+    /**
+     * 从榜单的缓存key还原查询参数（不是榜单的key返回null）
+     * rank:cityId:type:category:date、rank:v{n}:...（日榜），rank:c{cycle}:...（周榜、月榜），rank:h:...（之前某天的日榜）
+     * 日期不是今天时带上日期
+     */
+    static RankQueryDTO queryOfCacheKey(String cacheKey) {
+        if (!cacheKey.startsWith(CACHE_PREFIX)) {
+            return null;
+        }
+        String[] parts = cacheKey.substring(CACHE_PREFIX.length()).split(":");
+        int from;
+        Integer cycle = null;
+        if (parts.length == 4) {
+            from = 0;
+        } else if (parts.length == 5 && (parts[0].equals("h") || parts[0].matches("v\\d+"))) {
+            from = 1;
+        } else if (parts.length == 5 && parts[0].matches("c\\d+")) {
+            from = 1;
+            cycle = Integer.valueOf(parts[0].substring(1));
+        } else {
+            return null;
+        }
+        try {
+            RankQueryDTO query = new RankQueryDTO();
+            query.setCityId(parts[from]);
+            query.setType(Integer.valueOf(parts[from + 1]));
+            query.setCategory(Integer.valueOf(parts[from + 2]));
+            query.setRankCycle(cycle);
+            String date = parts[from + 3];
+            if (!date.equals(getTodayDate())) {
+                query.setDate(date);
+            }
+            return query;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 和榜单缓存key同一个版本的商家索引key（缓存key的最后是 :榜单标识:日期，日期里没有冒号）
+     */
+    private static String merchantIndexKeyOf(String cacheKey, String boardId) {
+        int at = cacheKey.lastIndexOf(":" + boardId + ":");
+        return cacheKey.substring(0, at + 1) + MERCHANT_INDEX + cacheKey.substring(at + 1 + boardId.length());
     }
 
     /**
      * 获取今天的日期（北京时间）
      */
-    private String getTodayDate() {
-        return LocalDate.now(BEIJING_ZONE).format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
+    public static String getTodayDate() {
+        return LocalDate.now(BEIJING_ZONE).format(DATE_FORMATTER);
     }
 }
\ No newline at end of file
@@ -0,0 +1,207 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+import shixipeixun.ranklist.serializer.RankBoardCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * 已发布榜单的本地快照文件
+ * 1. 每次有新版本发布后，把当天所有榜单（Redis里的二进制格式，不用重新编码）写到本地文件
+ * 2. 读取时用内存映射（MappedByteBuffer），按索引直接定位到榜单的字节解码，不用把整个文件读进内存
+ * 3. 启动时加载最新的快照，Redis和数据库都不可用时降级从快照读取
+ *
+ * 文件格式（rank-{date}.snap）：
+ * MAGIC(4字节) + 格式版本(4字节) + 日期 + 数据版本号(8字节) + 榜单个数(4字节)
+ * + 索引（每个榜单：榜单标识 + 偏移(4字节) + 长度(4字节)） + 所有榜单的二进制数据
+ * 字符串都是 长度(2字节) + UTF-8
+ */
+@Slf4j
+@Component
+public class RankSnapshot {
+
+    private static final int MAGIC = 0x524B534E; // "RKSN"
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_PREFIX = "rank-";
+    private static final String FILE_SUFFIX = ".snap";
+    private static final int KEEP_FILES = 2; // 保留最近几天的快照
+
+    private final Path dir;
+
+    // 当前映射的快照，没有时为null
+    private volatile Snapshot current;
+
+    public RankSnapshot(@Value("${rank.snapshot.dir:${java.io.tmpdir}/ranklist/snapshot}") String dir) {
+        this.dir = Paths.get(dir);
+    }
+
+    /**
+     * 启动时映射最新的快照文件
+     */
+    @PostConstruct
+    public void init() {
+        try (Stream<Path> files = listSnapshots()) {
+            Path latest = files.max(Comparator.naturalOrder()).orElse(null);
+            if (latest != null) {
+                current = map(latest);
+                log.info("加载榜单快照：{}，版本{}，{}个榜单", current.date(), current.version(), current.index().size());
+            }
+        } catch (Exception e) {
+            log.warn("加载榜单快照失败：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 当前快照是否已经是这个版本
+     */
+    public boolean contains(String date, long version) {
+        Snapshot snapshot = current;
+        return snapshot != null && snapshot.date().equals(date) && snapshot.version() == version;
+    }
+
+    /**
+     * 从快照读取某一天的榜单，快照不是这一天的或者没有这个榜单返回null
+     * @param boardId 榜单标识 cityId:type:category
+     */
+    public List<MerchantRankInfo> get(String date, String boardId) {
+        Snapshot snapshot = current;
+        if (snapshot == null || !snapshot.date().equals(date)) {
+            return null;
+        }
+        int[] position = snapshot.index().get(boardId);
+        if (position == null) {
+            return null;
+        }
+        // slice不改变共享buffer的状态，多线程读取安全
+        return RankBoardCodec.decodeBoard(snapshot.buffer().slice(position[0], position[1]));
+    }
+
+    /**
+     * 写入一天的快照并切换到新文件
+     * @param boards 榜单标识 -> 榜单的二进制数据（RankBoardCodec格式）
+     */
+    public void write(String date, long version, Map<String, byte[]> boards) throws IOException {
+        Files.createDirectories(dir);
+        Path target = dir.resolve(FILE_PREFIX + date + FILE_SUFFIX);
+        Path temp = dir.resolve(FILE_PREFIX + date + FILE_SUFFIX + ".tmp");
+
+        // 先算出索引的大小，才能知道每个榜单数据的偏移
+        List<byte[]> ids = new ArrayList<>(boards.size());
+        byte[] dateBytes = date.getBytes(StandardCharsets.UTF_8);
+        long headerSize = 4 + 4 + 2 + dateBytes.length + 8 + 4;
+        long totalSize = 0;
+        for (Map.Entry<String, byte[]> entry : boards.entrySet()) {
+            byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            ids.add(id);
+            headerSize += 2 + id.length + 4 + 4;
+            totalSize += entry.getValue().length;
+        }
+        // 偏移用int保存，映射的文件不能超过2GB
+        if (headerSize + totalSize > Integer.MAX_VALUE) {
+            throw new IOException("榜单快照太大：" + (headerSize + totalSize) + "字节");
+        }
+
+        try (OutputStream file = Files.newOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeShort(dateBytes.length);
+            out.write(dateBytes);
+            out.writeLong(version);
+            out.writeInt(boards.size());
+
+            long offset = headerSize;
+            int i = 0;
+            for (byte[] data : boards.values()) {
+                byte[] id = ids.get(i++);
+                out.writeShort(id.length);
+                out.write(id);
+                out.writeInt((int) offset);
+                out.writeInt(data.length);
+                offset += data.length;
+            }
+            for (byte[] data : boards.values()) {
+                out.write(data);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        current = map(target);
+        log.info("写入榜单快照：{}，版本{}，{}个榜单，{}字节", date, version, boards.size(), Files.size(target));
+        deleteOldSnapshots();
+    }
+
+    private Snapshot map(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // 映射建立后关闭channel不影响读取
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        ByteBuffer in = buffer.duplicate();
+        if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+            throw new IOException("不是榜单快照文件或格式版本不支持：" + file);
+        }
+        String date = readString(in);
+        long version = in.getLong();
+        int count = in.getInt();
+        Map<String, int[]> index = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String boardId = readString(in);
+            index.put(boardId, new int[]{in.getInt(), in.getInt()});
+        }
+        return new Snapshot(date, version, buffer, index);
+    }
+
+    private void deleteOldSnapshots() {
+        try (Stream<Path> files = listSnapshots()) {
+            List<Path> sorted = files.sorted(Comparator.reverseOrder()).toList();
+            for (Path old : sorted.subList(Math.min(KEEP_FILES, sorted.size()), sorted.size())) {
+                Files.deleteIfExists(old);
+            }
+        } catch (IOException e) {
+            log.warn("删除旧的榜单快照失败：{}", e.getMessage());
+        }
+    }
+
+    private Stream<Path> listSnapshots() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Stream.empty();
+        }
+        return Files.list(dir).filter(path -> {
+            String name = path.getFileName().toString();
+            return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+        });
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private record Snapshot(String date, long version, MappedByteBuffer buffer, Map<String, int[]> index) {
+    }
+}
@@ -0,0 +1,171 @@
+package shixipeixun.ranklist.service;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 排行榜缓存预热
+ * 1. 启动时在接收流量之前把今天的榜单加载到本地缓存（Redis没有的从数据库加载）
+ *    ApplicationRunner执行完之后应用才进入可接收流量（readiness）状态，所以预热完成前不会有流量进来
+ * 2. 有新数据发布、本地缓存被清空后，在后台重新加载之前最近访问的榜单
+ *    稍微延迟一下再加载，连续发布时的多次清空合并成一次预热
+ *    按原来的查询（周期、日期）加载，预热过程中又清空的榜单留到下一轮
+ * 3. 并行度不超过数据库连接池大小，每个任务按批量查询加载一组榜单
+ */
+@Slf4j
+@Component
+public class RankWarmer implements ApplicationRunner {
+
+    private static final int MAX_WARM_BOARDS = 2000; // 最多预热的榜单个数（和本地缓存容量一致）
+    private static final long STARTUP_TIMEOUT_SECONDS = 60; // 启动预热最多等待的时间
+    private static final long REWARM_TIMEOUT_SECONDS = 30; // 重新预热最多等待的时间
+    private static final long REWARM_DELAY_MILLIS = 500; // 清空后延迟多久重新预热
+
+    @Resource
+    private RankService rankService;
+
+    @Resource
+    private LocalRankCache localRankCache;
+
+    // 加载榜单的线程池
+    private final ExecutorService executor;
+
+    // 延迟执行重新预热的线程
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rank-rewarm");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 等待重新预热的榜单（cityId:type:category:rankCycle:date -> 查询参数）
+    private final ConcurrentHashMap<String, RankQueryDTO> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean rewarmScheduled = new AtomicBoolean(false);
+
+    // 同一时间只有一轮预热
+    private final AtomicBoolean warming = new AtomicBoolean(false);
+
+    public RankWarmer(@Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, poolSize), runnable -> {
+            Thread thread = new Thread(runnable, "rank-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long start = System.currentTimeMillis();
+        List<RankQueryDTO> boards = rankService.todayBoards(MAX_WARM_BOARDS);
+        if (boards.isEmpty()) {
+            log.info("没有需要预热的榜单");
+            return;
+        }
+
+        if (!warming.compareAndSet(false, true)) {
+            return;
+        }
+        int warmed;
+        try {
+            warmed = warm(boards, STARTUP_TIMEOUT_SECONDS);
+        } finally {
+            warming.set(false);
+        }
+        log.info("启动预热完成：{}个榜单，本地缓存{}个，耗时{}ms",
+                warmed, localRankCache.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 本地缓存被清空后，在后台重新加载之前最近访问的榜单
+     */
+    @EventListener
+    public void onCacheCleared(RankCacheClearedEvent event) {
+        for (RankQueryDTO dto : event.hotBoards()) {
+            pending.putIfAbsent(dto.getCityId() + ":" + dto.getType() + ":" + dto.getCategory()
+                    + ":" + dto.getRankCycle() + ":" + dto.getDate(), dto);
+        }
+        scheduleRewarm();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void scheduleRewarm() {
+        if (!pending.isEmpty() && rewarmScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::rewarm, REWARM_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void rewarm() {
+        rewarmScheduled.set(false);
+        // 上一轮还没完成，榜单留在pending里，稍后再试
+        if (!warming.compareAndSet(false, true)) {
+            scheduleRewarm();
+            return;
+        }
+        try {
+            List<RankQueryDTO> boards = new ArrayList<>();
+            for (String key : pending.keySet()) {
+                RankQueryDTO dto = pending.remove(key);
+                if (dto != null) {
+                    boards.add(dto);
+                }
+            }
+            int warmed = warm(boards, REWARM_TIMEOUT_SECONDS);
+            log.debug("重新预热了{}个榜单", warmed);
+        } finally {
+            warming.set(false);
+        }
+        // 预热过程中又有清空，合并到下一轮
+        scheduleRewarm();
+    }
+
+    /**
+     * 按批量查询的大小分组并行加载，返回加载成功的榜单个数（调用方先占住warming）
+     */
+    private int warm(List<RankQueryDTO> boards, long timeoutSeconds) {
+        if (boards.isEmpty()) {
+            return 0;
+        }
+        try {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int from = 0; from < boards.size(); from += RankService.MAX_BATCH_SIZE) {
+                List<RankQueryDTO> batch = boards.subList(from, Math.min(from + RankService.MAX_BATCH_SIZE, boards.size()));
+                tasks.add(() -> rankService.getRanks(batch).size());
+            }
+
+            int warmed = 0;
+            for (Future<Integer> future : executor.invokeAll(tasks, timeoutSeconds, TimeUnit.SECONDS)) {
+                try {
+                    warmed += future.get();
+                } catch (Exception e) {
+                    log.warn("预热榜单失败：{}", e.getMessage());
+                }
+            }
+            return warmed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+}
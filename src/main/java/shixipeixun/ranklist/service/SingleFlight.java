@@ -0,0 +1,64 @@
+package shixipeixun.ranklist.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的请求合并（single-flight）
+ * 同一个key同时只有一个线程真正执行加载，其他线程共享同一个结果
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentHashMap<String, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行加载
+     * @param key 合并的key
+     * @param loader 真正的加载逻辑，只会被第一个线程执行
+     * @param timeoutMillis 其他线程最多等待的时间
+     * @throws TimeoutException 等待超时（加载逻辑本身不受影响，还会继续执行）
+     */
+    public V execute(String key, Supplier<V> loader, long timeoutMillis) throws TimeoutException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = calls.putIfAbsent(key, mine);
+
+        if (existing == null) {
+            // 第一个到达的线程负责加载
+            try {
+                V value = loader.get();
+                mine.complete(value);
+                return value;
+            } catch (RuntimeException e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                calls.remove(key, mine);
+            }
+        }
+
+        // 其他线程等待结果，结果出来立刻唤醒
+        try {
+            return existing.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("等待加载结果时被中断：" + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 当前正在加载的key个数
+     */
+    public int inFlightCount() {
+        return calls.size();
+    }
+}
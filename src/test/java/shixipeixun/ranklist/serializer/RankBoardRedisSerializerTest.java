@@ -0,0 +1,110 @@
+package shixipeixun.ranklist.serializer;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RankBoardRedisSerializerTest {
+
+    private final RankBoardRedisSerializer serializer = new RankBoardRedisSerializer();
+
+    @Test
+    void boardRoundTrip() {
+        List<MerchantRankInfo> board = board(100);
+        board.get(3).setSaleNumMonth(null);
+        board.get(5).setId(-7L);
+        board.get(7).setMovement(-3);
+        board.get(8).setMovement(2);
+
+        byte[] bytes = serializer.serialize(board);
+        assertTrue(RankBoardCodec.isBinary(bytes));
+
+        List<MerchantRankInfo> decoded = (List<MerchantRankInfo>) serializer.deserialize(bytes);
+        assertEquals(board.size(), decoded.size());
+        for (int i = 0; i < board.size(); i++) {
+            MerchantRankInfo expected = board.get(i);
+            // 这几个字段不保存
+            expected.setOperator(null);
+            expected.setCreateTime(null);
+            expected.setIsDelete(null);
+            assertEquals(expected, decoded.get(i));
+        }
+    }
+
+    @Test
+    void binaryIsMuchSmallerThanJson() {
+        List<MerchantRankInfo> board = board(1000);
+        byte[] json = new GenericJackson2JsonRedisSerializer().serialize(board);
+        byte[] binary = serializer.serialize(board);
+
+        assertTrue(binary.length * 4 < json.length, "binary=" + binary.length + ", json=" + json.length);
+    }
+
+    @Test
+    void entryRoundTrip() {
+        MerchantRankInfo info = board(1).get(0);
+        info.setOperator(null);
+        info.setCreateTime(null);
+        info.setIsDelete(null);
+
+        assertEquals(info, serializer.deserialize(serializer.serialize(info)));
+    }
+
+    @Test
+    void movementIsTrailingExtension() {
+        // 名次变化写在记录后面，前面的内容和没有名次变化时一样，只认识记录的旧版本照常读取
+        List<MerchantRankInfo> board = board(3);
+        byte[] plain = RankBoardCodec.encodeBoard(board);
+        board.get(2).setMovement(4);
+        byte[] withMovement = RankBoardCodec.encodeBoard(board);
+
+        assertTrue(withMovement.length > plain.length);
+        assertArrayEquals(plain, Arrays.copyOf(withMovement, plain.length));
+        assertNull(RankBoardCodec.decodeBoard(plain).get(2).getMovement());
+        assertEquals(4, RankBoardCodec.decodeBoard(withMovement).get(2).getMovement());
+    }
+
+    @Test
+    void markersStayJson() {
+        assertEquals("NULL", serializer.deserialize(serializer.serialize("NULL")));
+        assertEquals("WAITING", serializer.deserialize(serializer.serialize("WAITING")));
+    }
+
+    @Test
+    void readsExistingJsonBoards() {
+        List<MerchantRankInfo> board = board(3);
+        byte[] json = new GenericJackson2JsonRedisSerializer().serialize(board);
+
+        assertEquals(board, serializer.deserialize(json));
+    }
+
+    private static List<MerchantRankInfo> board(int size) {
+        List<MerchantRankInfo> board = new ArrayList<>();
+        for (int i = 1; i <= size; i++) {
+            MerchantRankInfo info = new MerchantRankInfo();
+            info.setId(10000L + i);
+            info.setCityId("1001");
+            info.setType(1);
+            info.setCategory(2);
+            info.setMerchantId(880000L + i * 7L);
+            info.setSort(i);
+            info.setSaleNumMonth(5000 - i);
+            info.setSaleNumDay(200 - i % 50);
+            info.setDate("2024-01-01");
+            info.setIsDelete(0L);
+            info.setCreateTime(1704067200000L);
+            info.setUpdateTime(1704096000000L + i);
+            info.setRankCycle(1);
+            info.setOrderCnt(300 + i);
+            info.setOperator("system");
+            board.add(info);
+        }
+        return board;
+    }
+}
@@ -0,0 +1,35 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoardBloomFilterTest {
+
+    @Test
+    void containsAllBoardsAndSurvivesBytes() {
+        List<String> boardIds = new ArrayList<>();
+        for (int city = 1000; city < 1300; city++) {
+            for (int category = 1; category <= 10; category++) {
+                boardIds.add(city + ":1:" + category);
+            }
+        }
+        BoardBloomFilter filter = BoardBloomFilter.fromBytes(BoardBloomFilter.of(boardIds, 0.01).toBytes());
+
+        for (String boardId : boardIds) {
+            assertTrue(filter.mightContain(boardId));
+        }
+
+        // 不存在的组合大部分会被挡住
+        int falsePositives = 0;
+        for (int city = 5000; city < 6000; city++) {
+            if (filter.mightContain(city + ":2:99")) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50, "误判太多：" + falsePositives);
+    }
+}
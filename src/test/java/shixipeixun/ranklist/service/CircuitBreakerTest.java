@@ -0,0 +1,26 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    @Test
+    void opensAfterConsecutiveFailuresAndRecoversAfterProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(3, 50);
+        assertFalse(breaker.recordFailure());
+        assertFalse(breaker.recordFailure());
+        assertTrue(breaker.recordFailure());
+        assertFalse(breaker.allowRequest());
+
+        // 熔断时间过了只放一个试探请求
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+    }
+}
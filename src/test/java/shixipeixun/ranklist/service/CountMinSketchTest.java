@@ -0,0 +1,41 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CountMinSketchTest {
+
+    @Test
+    void estimateNeverUnderCounts() {
+        CountMinSketch sketch = new CountMinSketch(4, 256);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("1001:1:" + (i % 50));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue(sketch.estimate("1001:1:" + i) >= 20);
+        }
+    }
+
+    @Test
+    void sameHashCodeKeysAreCountedSeparately() {
+        // "Aa"和"BB"的String.hashCode相同
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 100; i++) {
+            sketch.add("1001:Aa:2");
+        }
+        assertEquals(100, sketch.estimate("1001:Aa:2"));
+        assertEquals(0, sketch.estimate("1001:BB:2"));
+    }
+
+    @Test
+    void halveDecaysCounts() {
+        CountMinSketch sketch = new CountMinSketch(4, 64);
+        for (int i = 0; i < 10; i++) {
+            sketch.add("1001:1:2");
+        }
+        sketch.halve();
+        assertEquals(5, sketch.estimate("1001:1:2"));
+    }
+}
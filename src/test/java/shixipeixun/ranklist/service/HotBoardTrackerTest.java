@@ -0,0 +1,27 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotBoardTrackerTest {
+
+    @Test
+    void frequentBoardBecomesHotAndCoolsDown() {
+        HotBoardTracker tracker = new HotBoardTracker();
+        for (int i = 0; i < 600; i++) {
+            tracker.record("1001:1:2");
+        }
+        tracker.record("1001:1:3");
+
+        assertTrue(tracker.isHot("1001:1:2"));
+        assertFalse(tracker.isHot("1001:1:3"));
+        assertEquals("1001:1:2", tracker.hotBoards().keySet().iterator().next());
+
+        // 没有新的访问，衰减几次后移出热点列表
+        for (int i = 0; i < 3; i++) {
+            tracker.decay();
+        }
+        assertFalse(tracker.isHot("1001:1:2"));
+    }
+}
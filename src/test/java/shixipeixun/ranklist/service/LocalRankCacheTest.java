@@ -0,0 +1,103 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.Test;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalRankCacheTest {
+
+    @Test
+    void putAndInvalidate() {
+        LocalRankCache cache = new LocalRankCache();
+        cache.put("rank:1001:1:2:2024-01-01", board(3));
+
+        assertEquals(3, cache.get("rank:1001:1:2:2024-01-01").size());
+        assertNull(cache.get("rank:1001:1:3:2024-01-01"));
+
+        cache.invalidate("rank:1001:1:2:2024-01-01");
+        assertNull(cache.get("rank:1001:1:2:2024-01-01"));
+
+        cache.put("rank:1001:1:2:2024-01-01", board(1));
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void putAfterInvalidateIsDropped() {
+        LocalRankCache cache = new LocalRankCache();
+        long generation = cache.generation();
+        // 读取Redis期间这个榜单被刷新、失效了
+        cache.invalidate("rank:1001:1:2:2024-01-01");
+
+        List<MerchantRankInfo> returned = cache.put("rank:1001:1:2:2024-01-01", board(2), generation);
+        assertEquals(2, returned.size());
+        assertNull(cache.get("rank:1001:1:2:2024-01-01"));
+
+        cache.put("rank:1001:1:2:2024-01-01", board(3), cache.generation());
+        assertEquals(3, cache.get("rank:1001:1:2:2024-01-01").size());
+    }
+
+    @Test
+    void returnedBoardIsReadOnly() {
+        LocalRankCache cache = new LocalRankCache();
+        List<MerchantRankInfo> shared = cache.put("rank:1001:1:2:2024-01-01", board(2));
+
+        assertThrows(UnsupportedOperationException.class, () -> shared.add(new MerchantRankInfo()));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBoards() {
+        LocalRankCache cache = new LocalRankCache();
+        for (int i = 0; i < 2100; i++) {
+            cache.put("rank:" + i, board(1));
+            // 一直访问第0个，它不应该被淘汰
+            cache.get("rank:0");
+        }
+
+        assertEquals(2000, cache.size());
+        assertNotNull(cache.get("rank:0"));
+        assertNull(cache.get("rank:1"));
+    }
+
+    @Test
+    void recentKeysStartWithMostRecentlyUsed() {
+        LocalRankCache cache = new LocalRankCache();
+        cache.put("rank:a", board(1));
+        cache.put("rank:b", board(2));
+        cache.put("rank:empty", board(0));
+        cache.put("rank:c", board(3));
+        cache.get("rank:a");
+
+        assertEquals(List.of("rank:a", "rank:c"), cache.recentKeys(2));
+        // 空榜单不需要预热
+        assertEquals(List.of("rank:a", "rank:c", "rank:b"), cache.recentKeys(10));
+    }
+
+    @Test
+    void invalidateAllKeepsLastVersionForRetain() {
+        LocalRankCache cache = new LocalRankCache();
+        assertNull(cache.retainVersion("2024-01-01"));
+
+        cache.putVersion("2024-01-01", 7);
+        cache.invalidateAll();
+        // 清空后要重新读Redis，读不到时还能用上一次的版本号
+        assertNull(cache.getVersion("2024-01-01"));
+        assertEquals(7, cache.retainVersion("2024-01-01"));
+        assertEquals(7, cache.getVersion("2024-01-01"));
+    }
+
+    private static List<MerchantRankInfo> board(int size) {
+        List<MerchantRankInfo> board = new ArrayList<>();
+        for (int i = 1; i <= size; i++) {
+            MerchantRankInfo info = new MerchantRankInfo();
+            info.setMerchantId((long) i);
+            info.setSort(i);
+            board.add(info);
+        }
+        return board;
+    }
+}
@@ -0,0 +1,254 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.zset.Weights;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RankCycleAggregatorTest {
+
+    private static final String BOARD_ID = "1001:1:2";
+    private static final LocalDate FIRST_DAY = LocalDate.of(2024, 3, 1);
+
+    private FakeZSets redis;
+    private RankCycleAggregator aggregator;
+
+    @BeforeEach
+    void setUp() {
+        redis = new FakeZSets();
+        aggregator = new RankCycleAggregator();
+        ReflectionTestUtils.setField(aggregator, "stringRedisTemplate", redis.template());
+    }
+
+    @Test
+    void weekIsPreviousWeekPlusTodayMinusExpiredDay() {
+        for (int day = 0; day < 10; day++) {
+            // 商家100每天卖(day+1)*10，商家101只在前两天有销量
+            aggregator.fold(date(day), Map.of(BOARD_ID, day < 2 ? board(100, (day + 1) * 10, 101, 5)
+                    : board(100, (day + 1) * 10)));
+
+            Map<Long, Integer> week = sales(RankCycleAggregator.CYCLE_WEEK, day);
+            int expected = 0;
+            int expected101 = 0;
+            for (int d = Math.max(0, day - 6); d <= day; d++) {
+                expected += (d + 1) * 10;
+                expected101 += d < 2 ? 5 : 0;
+            }
+            assertEquals(expected, week.get(100L), "第" + day + "天");
+            // 滑出窗口后销量为0的商家去掉
+            assertEquals(expected101 > 0 ? Integer.valueOf(expected101) : null, week.get(101L), "第" + day + "天");
+        }
+        // 10天都在月榜窗口内
+        assertEquals(550, sales(RankCycleAggregator.CYCLE_MONTH, 9).get(100L));
+    }
+
+    @Test
+    void republishingSameDayDoesNotDoubleCount() {
+        aggregator.fold(date(0), Map.of(BOARD_ID, board(100, 10)));
+        aggregator.fold(date(1), Map.of(BOARD_ID, board(100, 20)));
+        aggregator.fold(date(1), Map.of(BOARD_ID, board(100, 25)));
+
+        assertEquals(35, sales(RankCycleAggregator.CYCLE_WEEK, 1).get(100L));
+    }
+
+    @Test
+    void missingAggregateIsRebuiltFromDailyScores() {
+        for (int day = 0; day < 4; day++) {
+            aggregator.fold(date(day), Map.of(BOARD_ID, board(100, 10)));
+        }
+        // 前一天的聚合过期了，发布时从每天的分数重新合并
+        redis.delete(RankCycleAggregator.cycleKey(RankCycleAggregator.CYCLE_WEEK, BOARD_ID, date(3)));
+        aggregator.fold(date(4), Map.of(BOARD_ID, board(100, 10)));
+        assertEquals(50, sales(RankCycleAggregator.CYCLE_WEEK, 4).get(100L));
+
+        // 读取时聚合不存在，也先合并一次
+        redis.delete(RankCycleAggregator.cycleKey(RankCycleAggregator.CYCLE_WEEK, BOARD_ID, date(4)));
+        assertEquals(50, sales(RankCycleAggregator.CYCLE_WEEK, 4).get(100L));
+    }
+
+    @Test
+    void boardIsSortedBySales() {
+        aggregator.fold(date(0), Map.of(BOARD_ID, board(100, 10, 101, 30, 102, 20)));
+
+        List<MerchantRankInfo> board = aggregator.readBoard(query(RankCycleAggregator.CYCLE_WEEK), BOARD_ID, date(0));
+        assertEquals(List.of(101L, 102L, 100L), board.stream().map(MerchantRankInfo::getMerchantId).toList());
+        assertEquals(List.of(1, 2, 3), board.stream().map(MerchantRankInfo::getSort).toList());
+    }
+
+    private Map<Long, Integer> sales(int cycle, int day) {
+        Map<Long, Integer> sales = new HashMap<>();
+        for (MerchantRankInfo info : aggregator.readBoard(query(cycle), BOARD_ID, date(day))) {
+            sales.put(info.getMerchantId(), info.getSaleNumDay());
+        }
+        return sales;
+    }
+
+    private static String date(int day) {
+        return FIRST_DAY.plusDays(day).toString();
+    }
+
+    private static RankQueryDTO query(int cycle) {
+        RankQueryDTO dto = new RankQueryDTO();
+        dto.setCityId("1001");
+        dto.setType(1);
+        dto.setCategory(2);
+        dto.setRankCycle(cycle);
+        return dto;
+    }
+
+    /**
+     * 榜单数据：merchantId, saleNumDay, merchantId, saleNumDay...
+     */
+    private static List<MerchantRankInfo> board(int... merchantSales) {
+        List<MerchantRankInfo> board = new ArrayList<>();
+        for (int i = 0; i < merchantSales.length; i += 2) {
+            MerchantRankInfo info = new MerchantRankInfo();
+            info.setMerchantId((long) merchantSales[i]);
+            info.setSaleNumDay(merchantSales[i + 1]);
+            board.add(info);
+        }
+        return board;
+    }
+
+    /**
+     * 进程内的假Redis，只实现周期聚合用到的有序集合命令（ZADD/ZUNIONSTORE带权重/ZREMRANGEBYSCORE/ZREVRANGE）
+     * pipeline里的命令直接执行，按顺序返回结果
+     */
+    @SuppressWarnings("unchecked")
+    private static final class FakeZSets {
+
+        private final Map<String, Map<String, Double>> zsets = new ConcurrentHashMap<>();
+
+        void delete(String key) {
+            zsets.remove(key);
+        }
+
+        StringRedisTemplate template() {
+            ZSetOperations<String, String> direct = zsetOperations(result -> {
+            });
+            return new StringRedisTemplate() {
+                @Override
+                public List<Object> executePipelined(SessionCallback<?> session) {
+                    List<Object> results = new ArrayList<>();
+                    session.execute(pipeline(results));
+                    return results;
+                }
+
+                @Override
+                public Boolean hasKey(String key) {
+                    return zsets.containsKey(key);
+                }
+
+                @Override
+                public ZSetOperations<String, String> opsForZSet() {
+                    return direct;
+                }
+            };
+        }
+
+        private RedisOperations<String, String> pipeline(List<Object> results) {
+            ZSetOperations<String, String> zsetOps = zsetOperations(results::add);
+            return (RedisOperations<String, String>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{RedisOperations.class}, (proxy, method, args) -> switch (method.getName()) {
+                        case "opsForZSet" -> zsetOps;
+                        case "hasKey" -> record(results, zsets.containsKey((String) args[0]));
+                        case "delete" -> record(results, zsets.remove((String) args[0]) != null);
+                        case "expire" -> record(results, true);
+                        default -> throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+        private ZSetOperations<String, String> zsetOperations(Consumer<Object> results) {
+            return (ZSetOperations<String, String>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{ZSetOperations.class}, (proxy, method, args) -> {
+                        Object result = switch (method.getName()) {
+                            case "add" -> add((String) args[0], (Set<ZSetOperations.TypedTuple<String>>) args[1]);
+                            case "unionAndStore" -> args.length == 3
+                                    ? union((String) args[0], (Collection<String>) args[1], (String) args[2], null)
+                                    : union((String) args[0], (Collection<String>) args[1], (String) args[2], (Weights) args[4]);
+                            case "removeRangeByScore" -> removeRange((String) args[0], (double) args[1], (double) args[2]);
+                            case "reverseRangeWithScores" -> reverseRange((String) args[0], (long) args[1], (long) args[2]);
+                            default -> throw new UnsupportedOperationException(method.getName());
+                        };
+                        results.accept(result);
+                        return result;
+                    });
+        }
+
+        private static Object record(List<Object> results, Object result) {
+            results.add(result);
+            return result;
+        }
+
+        private Long add(String key, Set<ZSetOperations.TypedTuple<String>> tuples) {
+            Map<String, Double> zset = zsets.computeIfAbsent(key, k -> new HashMap<>());
+            tuples.forEach(tuple -> zset.put(tuple.getValue(), tuple.getScore()));
+            return (long) tuples.size();
+        }
+
+        /**
+         * ZUNIONSTORE，聚合方式是SUM，不存在的key当成空集合，结果为空时删除目标key
+         */
+        private Long union(String key, Collection<String> otherKeys, String destKey, Weights weights) {
+            List<String> keys = new ArrayList<>();
+            keys.add(key);
+            keys.addAll(otherKeys);
+            Map<String, Double> result = new HashMap<>();
+            for (int i = 0; i < keys.size(); i++) {
+                double weight = weights == null ? 1 : weights.getWeight(i);
+                zsets.getOrDefault(keys.get(i), Map.of())
+                        .forEach((member, score) -> result.merge(member, score * weight, Double::sum));
+            }
+            if (result.isEmpty()) {
+                zsets.remove(destKey);
+            } else {
+                zsets.put(destKey, result);
+            }
+            return (long) result.size();
+        }
+
+        private Long removeRange(String key, double min, double max) {
+            Map<String, Double> zset = zsets.get(key);
+            if (zset == null) {
+                return 0L;
+            }
+            int before = zset.size();
+            zset.values().removeIf(score -> score >= min && score <= max);
+            if (zset.isEmpty()) {
+                zsets.remove(key);
+            }
+            return (long) (before - zset.size());
+        }
+
+        private Set<ZSetOperations.TypedTuple<String>> reverseRange(String key, long start, long end) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = new LinkedHashSet<>();
+            zsets.getOrDefault(key, Map.of()).entrySet().stream()
+                    .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                    .skip(start)
+                    .limit(end - start + 1)
+                    .forEach(entry -> tuples.add(new DefaultTypedTuple<>(entry.getKey(), entry.getValue())));
+            return tuples;
+        }
+    }
+}
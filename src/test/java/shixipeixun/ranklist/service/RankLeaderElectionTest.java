@@ -0,0 +1,94 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 租约脚本在Redis里执行，这里检查传给脚本的参数和对返回值的处理
+ */
+@SuppressWarnings("unchecked")
+class RankLeaderElectionTest {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private RankLeaderElection election;
+    private RedisScript<Long> acquireScript;
+    private RedisScript<Long> releaseScript;
+    private String instanceId;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        election = new RankLeaderElection();
+        ReflectionTestUtils.setField(election, "stringRedisTemplate", stringRedisTemplate);
+        acquireScript = (RedisScript<Long>) ReflectionTestUtils.getField(RankLeaderElection.class, "ACQUIRE_SCRIPT");
+        releaseScript = (RedisScript<Long>) ReflectionTestUtils.getField(RankLeaderElection.class, "RELEASE_SCRIPT");
+        instanceId = (String) ReflectionTestUtils.getField(election, "instanceId");
+    }
+
+    @Test
+    void acquiredLeaseMakesLeaderWithFencingToken() {
+        when(stringRedisTemplate.execute(eq(acquireScript), anyList(), any(Object[].class))).thenReturn(5L);
+        election.renew();
+
+        verify(stringRedisTemplate).execute(acquireScript, List.of(RankLeaderElection.LEASE_KEY, "rank:leader:seq"),
+                instanceId, "10000");
+        assertTrue(election.isLeader());
+        assertEquals(5, election.fencingToken());
+
+        // 续约时脚本返回同一个令牌
+        election.renew();
+        assertTrue(election.isLeader());
+        assertEquals(5, election.fencingToken());
+    }
+
+    @Test
+    void leaseHeldByAnotherInstanceStopsLeading() {
+        when(stringRedisTemplate.execute(eq(acquireScript), anyList(), any(Object[].class))).thenReturn(5L, 0L);
+        election.renew();
+        election.renew();
+
+        assertFalse(election.isLeader());
+        assertEquals(0, election.fencingToken());
+    }
+
+    @Test
+    void failedRenewKeepsLeadingOnlyUntilSafetyMargin() {
+        when(stringRedisTemplate.execute(eq(acquireScript), anyList(), any(Object[].class)))
+                .thenReturn(5L)
+                .thenThrow(new RedisConnectionFailureException("down"));
+        election.renew();
+        election.renew();
+
+        // 续约失败时令牌不变，本地租约还没到期
+        assertTrue(election.isLeader());
+        assertEquals(5, election.fencingToken());
+
+        // 本地租约（租约时长减去余量）到期后不再是主实例
+        ReflectionTestUtils.setField(election, "validUntil", System.currentTimeMillis() - 1);
+        assertFalse(election.isLeader());
+    }
+
+    @Test
+    void releaseDeletesOnlyOwnLease() {
+        when(stringRedisTemplate.execute(eq(acquireScript), anyList(), any(Object[].class))).thenReturn(5L);
+        election.renew();
+        election.release();
+
+        verify(stringRedisTemplate).execute(releaseScript, List.of(RankLeaderElection.LEASE_KEY), instanceId + "|5");
+        assertFalse(election.isLeader());
+
+        // 已经不是主实例，不再释放
+        election.release();
+        verify(stringRedisTemplate, times(1)).execute(eq(releaseScript), anyList(), any(Object[].class));
+    }
+}
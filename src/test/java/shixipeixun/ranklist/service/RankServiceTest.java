@@ -0,0 +1,418 @@
+package shixipeixun.ranklist.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+import shixipeixun.ranklist.dto.RankQueryDTO;
+import shixipeixun.ranklist.entity.BoardWatermark;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+import shixipeixun.ranklist.mapper.MerchantRankInfoMapper;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * RankService的加载和发布路径，Redis和数据库都是桩（Lua脚本本身要在Redis里执行，这里只检查传给脚本的参数和对返回值的处理）
+ */
+@SuppressWarnings("unchecked")
+class RankServiceTest {
+
+    private static final String TODAY = RankService.getTodayDate();
+    private static final String CACHE_KEY = "rank:v3:1001:1:2:" + TODAY;
+
+    private RankService rankService;
+    private MerchantRankInfoMapper mapper;
+    private RedisTemplate<String, Object> redisTemplate;
+    private ValueOperations<String, Object> valueOps;
+    private RedisOperations<String, Object> pipeline;
+    private StringRedisTemplate stringRedisTemplate;
+    private ValueOperations<String, String> stringValueOps;
+    private HashOperations<String, Object, Object> hashOps;
+    private SetOperations<String, String> setOps;
+    private RankCacheChannel rankCacheChannel;
+    private LocalRankCache localRankCache;
+    private RankLeaderElection rankLeaderElection;
+    private RedisScript<Long> switchScript;
+    // 版本切换脚本的返回值：1切换成功，0已有更新的版本，-1令牌已过期
+    private long switchResult = 1;
+    // 其他脚本（商家索引）的调用：脚本、keys、参数
+    private final List<Object[]> scriptCalls = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() {
+        mapper = mock(MerchantRankInfoMapper.class);
+        redisTemplate = mock(RedisTemplate.class);
+        valueOps = mock(ValueOperations.class);
+        pipeline = mock(RedisOperations.class, RETURNS_DEEP_STUBS);
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        stringValueOps = mock(ValueOperations.class);
+        hashOps = mock(HashOperations.class);
+        setOps = mock(SetOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(valueOps);
+        when(stringRedisTemplate.opsForValue()).thenReturn(stringValueOps);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOps);
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOps);
+
+        // pipeline里的命令交给pipeline桩，每个命令返回一个空Hash（读前一天的名次时用到）
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenAnswer(invocation -> {
+            invocation.<SessionCallback<Object>>getArgument(0).execute(pipeline);
+            return new ArrayList<>(Collections.nCopies(64, Map.of()));
+        });
+        switchScript = (RedisScript<Long>) ReflectionTestUtils.getField(RankService.class, "SWITCH_VERSION_SCRIPT");
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class))).thenAnswer(invocation -> {
+            if (invocation.getArgument(0) == switchScript) {
+                return switchResult;
+            }
+            scriptCalls.add(invocation.getRawArguments());
+            return 1L;
+        });
+        when(stringValueOps.get("rank:version:" + TODAY)).thenReturn("3");
+        when(stringValueOps.increment("rank:version:seq")).thenReturn(4L);
+
+        RankMetrics rankMetrics = new RankMetrics(new SimpleMeterRegistry());
+        localRankCache = new LocalRankCache();
+        localRankCache.putVersion(TODAY, 3);
+        localRankCache.putStaleVersion(TODAY, -1);
+
+        rankCacheChannel = spy(new RankCacheChannel());
+        ReflectionTestUtils.setField(rankCacheChannel, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(rankCacheChannel, "localRankCache", localRankCache);
+        ReflectionTestUtils.setField(rankCacheChannel, "rankResponseCache", mock(RankResponseCache.class));
+        ReflectionTestUtils.setField(rankCacheChannel, "eventPublisher", mock(ApplicationEventPublisher.class));
+
+        RankFallback rankFallback = new RankFallback(4);
+        ReflectionTestUtils.setField(rankFallback, "rankMetrics", rankMetrics);
+        ReflectionTestUtils.setField(rankFallback, "rankSnapshot", mock(RankSnapshot.class));
+
+        rankLeaderElection = mock(RankLeaderElection.class);
+        when(rankLeaderElection.fencingToken()).thenReturn(7L);
+
+        rankService = new RankService();
+        ReflectionTestUtils.setField(rankService, "merchantRankInfoMapper", mapper);
+        ReflectionTestUtils.setField(rankService, "redisTemplate", redisTemplate);
+        ReflectionTestUtils.setField(rankService, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(rankService, "localRankCache", localRankCache);
+        ReflectionTestUtils.setField(rankService, "rankCacheChannel", rankCacheChannel);
+        ReflectionTestUtils.setField(rankService, "rankMetrics", rankMetrics);
+        ReflectionTestUtils.setField(rankService, "rankCycleAggregator", mock(RankCycleAggregator.class));
+        ReflectionTestUtils.setField(rankService, "hotBoardTracker", new HotBoardTracker());
+        ReflectionTestUtils.setField(rankService, "rankAdmissionFilter", mock(RankAdmissionFilter.class));
+        ReflectionTestUtils.setField(rankService, "rankFallback", rankFallback);
+        ReflectionTestUtils.setField(rankService, "rankSnapshot", mock(RankSnapshot.class));
+        ReflectionTestUtils.setField(rankService, "rankLeaderElection", rankLeaderElection);
+    }
+
+    @AfterEach
+    void tearDown() {
+        rankService.shutdown();
+    }
+
+    @Test
+    void publishWritesNewVersionAndSwitchesWithFencingToken() {
+        registered();
+        Set<String> updated = publish(rows("1001", 3), rows("1002", 2));
+
+        assertEquals(Set.of("1001:1:2", "1002:1:2"), updated);
+        // 榜单写到新版本的key下
+        verify(pipeline.opsForValue()).set(eq("rank:v4:1001:1:2:" + TODAY), any(), anyLong(), any());
+        verify(pipeline.opsForValue()).set(eq("rank:v4:1002:1:2:" + TODAY), any(), anyLong(), any());
+        // 带上主实例令牌切换版本指针，成功后通知所有实例
+        verify(stringRedisTemplate).execute(eq(switchScript),
+                eq(List.of("rank:version:" + TODAY, RankLeaderElection.FENCE_KEY)),
+                eq("4"), eq(String.valueOf(86400 * 2)), eq("7"));
+        verify(rankCacheChannel).publishInvalidateAll();
+    }
+
+    @Test
+    void publishIsDroppedWhenFencedOrSuperseded() {
+        registered();
+        switchResult = -1;
+        assertTrue(publish(rows("1001", 3)).isEmpty());
+
+        switchResult = 0;
+        assertTrue(publish(rows("1001", 3)).isEmpty());
+        verify(rankCacheChannel, never()).publishInvalidateAll();
+    }
+
+    @Test
+    void refreshReloadsOnlyBoardsWhoseWatermarkChanged() {
+        registered();
+        // 已发布10个榜单，现在1003的水位变了、1010是新的、1009已经没有数据
+        Map<Object, Object> published = new HashMap<>();
+        List<BoardWatermark> current = new ArrayList<>();
+        for (int city = 1000; city < 1010; city++) {
+            published.put(city + ":1:2", "100:10");
+            if (city != 1009) {
+                current.add(watermark(String.valueOf(city), city == 1003 ? "200:10" : "100:10"));
+            }
+        }
+        current.add(watermark("1010", "100:5"));
+        when(hashOps.entries("rank:watermark:" + TODAY)).thenReturn(published);
+        when(mapper.selectBoardWatermarksByDate(TODAY)).thenReturn(current);
+        when(mapper.selectByConditions(eq(TODAY), anyString(), eq(1), eq(2)))
+                .thenAnswer(invocation -> rows(invocation.getArgument(1), 3));
+
+        BoardWatermark day = watermark(null, "300:95");
+        ReflectionTestUtils.invokeMethod(rankService, "refreshChangedBoards", TODAY, day);
+
+        verify(mapper).selectByConditions(TODAY, "1003", 1, 2);
+        verify(mapper).selectByConditions(TODAY, "1010", 1, 2);
+        verify(mapper, times(2)).selectByConditions(any(), any(), any(), any());
+        verify(hashOps).delete("rank:watermark:" + TODAY, "1009:1:2");
+        verify(hashOps).putAll("rank:watermark:" + TODAY,
+                Map.of("1003:1:2", "200:10", "1010:1:2", "100:5", "*", "300:95"));
+    }
+
+    @Test
+    void waiterWakesUpWhenAnotherInstanceLoads() throws Exception {
+        List<MerchantRankInfo> board = rows("1001", 3);
+        AtomicBoolean loaded = new AtomicBoolean(false);
+        when(valueOps.get(CACHE_KEY)).thenAnswer(invocation -> loaded.get() ? board : null);
+        // 锁在别的实例手里
+        when(valueOps.setIfAbsent(eq("lock:rank:" + CACHE_KEY), any(), anyLong(), any())).thenReturn(false);
+
+        CompletableFuture.runAsync(() -> {
+            sleep(200);
+            loaded.set(true);
+            rankCacheChannel.publishLoaded(CACHE_KEY);
+        });
+        long start = System.nanoTime();
+        List<MerchantRankInfo> result = rankService.getRank(query("1001"));
+
+        assertEquals(3, result.size());
+        // 收到通知立刻返回，不用等到超时
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1500);
+        verify(mapper, never()).selectByConditions(any(), any(), any(), any());
+    }
+
+    @Test
+    void concurrentMissesQueryDatabaseOnce() throws Exception {
+        AtomicBoolean loaded = new AtomicBoolean(false);
+        when(valueOps.get(CACHE_KEY)).thenAnswer(invocation -> loaded.get() ? rows("1001", 3) : null);
+        when(valueOps.setIfAbsent(eq("lock:rank:" + CACHE_KEY), any(), anyLong(), any())).thenReturn(true);
+        when(mapper.selectByConditions(TODAY, "1001", 1, 2)).thenAnswer(invocation -> {
+            sleep(300);
+            loaded.set(true);
+            return rows("1001", 3);
+        });
+
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<List<MerchantRankInfo>>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            results.add(CompletableFuture.supplyAsync(() -> {
+                awaitQuietly(start);
+                return rankService.getRank(query("1001"));
+            }));
+        }
+        start.countDown();
+        for (CompletableFuture<List<MerchantRankInfo>> result : results) {
+            assertEquals(3, result.get(5, TimeUnit.SECONDS).size());
+        }
+        verify(mapper, times(1)).selectByConditions(TODAY, "1001", 1, 2);
+    }
+
+    @Test
+    void publishMovesMerchantIndexFromOldPositions() {
+        registered();
+        publish(rows("1001", 3));
+
+        // 新版本的商家索引从旧版本复制过来，再用旧版本的商家名次去掉这个榜单原来的名次
+        verify(redisTemplate).copy("rank:v3:merchants:" + TODAY, "rank:v4:merchants:" + TODAY, true);
+        assertEquals(1, scriptCalls.size());
+        Object[] call = scriptCalls.get(0);
+        assertEquals(List.of("rank:v4:merchants:" + TODAY, "rank:v3:1001:1:2:" + TODAY + ":pos"), call[1]);
+        Object[] args = (Object[]) call[2];
+        assertEquals("1001:1:2", args[0]);
+        Map<Object, Object> positions = new HashMap<>();
+        for (int i = 2; i < args.length; i += 2) {
+            positions.put(args[i], args[i + 1]);
+        }
+        assertEquals(Map.of("100", "1", "101", "2", "102", "3"), positions);
+    }
+
+    @Test
+    void pageReadsOnlyRequestedRanksFromSortedSet() {
+        ZSetOperations<String, Object> zsetOps = mock(ZSetOperations.class);
+        when(redisTemplate.opsForZSet()).thenReturn(zsetOps);
+        List<MerchantRankInfo> board = rows("1001", 20);
+        when(zsetOps.range(CACHE_KEY + ":z", 10, 14)).thenReturn(new LinkedHashSet<>(board.subList(10, 15)));
+
+        RankQueryDTO dto = query("1001");
+        dto.setOffset(10);
+        dto.setLimit(5);
+        assertEquals(board.subList(10, 15), rankService.getRankPage(dto));
+        // 不读整个榜单
+        verify(valueOps, never()).get(any());
+
+        // 本地缓存有整个榜单时直接截取
+        localRankCache.put(CACHE_KEY, board);
+        dto.setOffset(18);
+        assertEquals(board.subList(18, 20), rankService.getRankPage(dto));
+        verify(zsetOps, times(1)).range(any(), anyLong(), anyLong());
+    }
+
+    @Test
+    void cityGroupsSplitsCitiesIntoContiguousGroups() {
+        Set<String> boardIds = Set.of("1001:1:2", "1001:1:3", "1002:1:2", "1003:1:2", "1004:1:2", "1005:1:2");
+
+        assertEquals(List.of(List.of("1001", "1002", "1003"), List.of("1004", "1005")),
+                RankService.cityGroups(boardIds, 2));
+        assertEquals(List.of(List.of("1001", "1002", "1003", "1004", "1005")), RankService.cityGroups(boardIds, 1));
+        // 分区比城市多时每个城市一组
+        assertEquals(5, RankService.cityGroups(boardIds, 8).size());
+        assertTrue(RankService.cityGroups(Set.of(), 4).isEmpty());
+    }
+
+    @Test
+    void movementIsPreviousSortMinusTodaySort() {
+        List<MerchantRankInfo> board = rows("1001", 4);
+        board.get(3).setSort(null); // 没有sort时按榜单里的顺序
+        RankService.applyMovement(board, Map.of("100", "3", "101", "1", "103", 4));
+
+        assertEquals(2, board.get(0).getMovement());
+        assertEquals(-1, board.get(1).getMovement());
+        assertNull(board.get(2).getMovement()); // 前一天不在榜上
+        assertEquals(0, board.get(3).getMovement());
+    }
+
+    @Test
+    void publishReadsPreviousDaySortsForMovement() {
+        registered();
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenAnswer(invocation -> {
+            invocation.<SessionCallback<Object>>getArgument(0).execute(pipeline);
+            return new ArrayList<>(Collections.nCopies(64, Map.of("100", "5")));
+        });
+        List<MerchantRankInfo> board = rows("1001", 2);
+        publish(board);
+
+        String yesterday = LocalDate.parse(TODAY).minusDays(1).toString();
+        verify(pipeline.opsForHash()).entries("rank:sort:1001:1:2:" + yesterday);
+        assertEquals(4, board.get(0).getMovement());
+        assertNull(board.get(1).getMovement());
+    }
+
+    @Test
+    void noonResetCarriesFencingToken() {
+        RedisScript<Long> resetScript = (RedisScript<Long>) ReflectionTestUtils.getField(RankService.class, "RESET_SCRIPT");
+        when(rankLeaderElection.isLeader()).thenReturn(true);
+        rankService.resetAtNoon();
+
+        verify(stringRedisTemplate).execute(eq(resetScript),
+                eq(List.of("rank:stale:" + TODAY, "rank:watermark:" + TODAY, "rank:reset:" + TODAY,
+                        RankLeaderElection.FENCE_KEY)),
+                eq("3"), eq("86400"), eq("7"));
+        verify(rankCacheChannel).publishInvalidateAll();
+
+        // 令牌已经被取代，脚本拒绝时不通知
+        when(stringRedisTemplate.execute(eq(resetScript), anyList(), any(Object[].class))).thenReturn(-1L);
+        rankService.resetAtNoon();
+        verify(rankCacheChannel, times(1)).publishInvalidateAll();
+
+        // 不是主实例时不执行
+        when(rankLeaderElection.isLeader()).thenReturn(false);
+        rankService.resetAtNoon();
+        verify(stringRedisTemplate, times(2)).execute(eq(resetScript), anyList(), any(Object[].class));
+    }
+
+    private Set<String> publish(List<MerchantRankInfo>... boards) {
+        List<MerchantRankInfo> all = new ArrayList<>();
+        for (List<MerchantRankInfo> board : boards) {
+            all.addAll(board);
+        }
+        return ReflectionTestUtils.invokeMethod(rankService, "updateCacheWithNewData", all, TODAY);
+    }
+
+    /**
+     * 当天登记过的榜单（这里没有，不用复制）
+     */
+    private void registered(String... boardIds) {
+        Cursor<String> cursor = mock(Cursor.class);
+        Iterator<String> iterator = List.of(boardIds).iterator();
+        when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> iterator.next());
+        when(setOps.scan(eq("rank:boards:" + TODAY), any(ScanOptions.class))).thenReturn(cursor);
+    }
+
+    static List<MerchantRankInfo> rows(String cityId, int size) {
+        List<MerchantRankInfo> board = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            MerchantRankInfo info = new MerchantRankInfo();
+            info.setCityId(cityId);
+            info.setType(1);
+            info.setCategory(2);
+            info.setMerchantId(100L + i);
+            info.setSort(i + 1);
+            info.setSaleNumDay(1000 - i);
+            info.setDate(TODAY);
+            board.add(info);
+        }
+        return board;
+    }
+
+    private static RankQueryDTO query(String cityId) {
+        RankQueryDTO dto = new RankQueryDTO();
+        dto.setCityId(cityId);
+        dto.setType(1);
+        dto.setCategory(2);
+        return dto;
+    }
+
+    private static BoardWatermark watermark(String cityId, String mark) {
+        BoardWatermark watermark = new BoardWatermark();
+        watermark.setCityId(cityId);
+        if (cityId != null) {
+            watermark.setType(1);
+            watermark.setCategory(2);
+        }
+        String[] parts = mark.split(":");
+        watermark.setMaxUpdateTime(Long.parseLong(parts[0]));
+        watermark.setRowCount(Long.parseLong(parts[1]));
+        return watermark;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
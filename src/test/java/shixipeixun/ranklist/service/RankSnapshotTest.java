@@ -0,0 +1,57 @@
+package shixipeixun.ranklist.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shixipeixun.ranklist.entity.MerchantRankInfo;
+import shixipeixun.ranklist.serializer.RankBoardCodec;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RankSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writeThenReadAfterRestart() throws Exception {
+        Map<String, byte[]> boards = new LinkedHashMap<>();
+        boards.put("1001:1:2", RankBoardCodec.encodeBoard(board("1001", 3)));
+        boards.put("1002:1:2", RankBoardCodec.encodeBoard(board("1002", 5)));
+
+        RankSnapshot snapshot = new RankSnapshot(dir.toString());
+        snapshot.write("2024-01-01", 7, boards);
+        assertTrue(snapshot.contains("2024-01-01", 7));
+        assertEquals(3, snapshot.get("2024-01-01", "1001:1:2").size());
+
+        // 重启后加载最新的快照
+        RankSnapshot restarted = new RankSnapshot(dir.toString());
+        restarted.init();
+        List<MerchantRankInfo> board = restarted.get("2024-01-01", "1002:1:2");
+        assertEquals(5, board.size());
+        assertEquals("1002", board.get(0).getCityId());
+        assertNull(restarted.get("2024-01-01", "1003:1:2"));
+        // 快照不是这一天的不能用
+        assertNull(restarted.get("2024-01-02", "1002:1:2"));
+    }
+
+    private static List<MerchantRankInfo> board(String cityId, int size) {
+        List<MerchantRankInfo> board = new ArrayList<>();
+        for (int i = 1; i <= size; i++) {
+            MerchantRankInfo info = new MerchantRankInfo();
+            info.setCityId(cityId);
+            info.setType(1);
+            info.setCategory(2);
+            info.setMerchantId(100L + i);
+            info.setSort(i);
+            info.setDate("2024-01-01");
+            board.add(info);
+        }
+        return board;
+    }
+}